@@ -0,0 +1,103 @@
+package com.clearspring.analytics.hash;
+
+/**
+ * The 64 bit hashes a HyperLogLogPlus can be built with. The id is written in the serialized sketch:
+ * sketches built with different hashes cannot be merged, their registers do not describe the same thing.
+ * <p/>
+ * Objects are turned into bytes the same way for every hash (see {@link MurmurHash#hash64(Object)}):
+ * a String by String.getBytes(), a byte[] as it is, anything else by its toString().
+ */
+public enum HashStrategy {
+
+    /** MurmurHash2 64 bit, seed 0xe17a1465: what HyperLogLogPlus always used. */
+    MURMUR2_64(0, MurmurHash.DEFAULT_SEED_64) {
+        @Override
+        public long hash(byte[] data, int offset, int length, long seed) {
+            return MurmurHash.hash64(data, offset, length, (int) seed);
+        }
+
+        @Override
+        public long hashLong(long value) {
+            return MurmurHash.hash64Long(value);
+        }
+    },
+    /** xxHash64, seed 0: faster than MurmurHash2 on long values (4 independent lanes), about the same on short ones. */
+    XXHASH_64(1, 0) {
+        @Override
+        public long hash(byte[] data, int offset, int length, long seed) {
+            return XxHash64.hash64(data, offset, length, seed);
+        }
+
+        @Override
+        public long hashLong(long value) {
+            return XxHash64.hash64Long(value, 0);
+        }
+    },
+    /** MurmurHash3 x64 128 bit, seed 0, the two halves xor-ed together. */
+    MURMUR3_128(2, 0) {
+        @Override
+        public long hash(byte[] data, int offset, int length, long seed) {
+            return MurmurHash3.hash128Folded(data, offset, length, (int) seed);
+        }
+
+        @Override
+        public long hashLong(long value) {
+            return MurmurHash3.hash128FoldedLong(value, 0);
+        }
+    };
+
+    private static final HashStrategy[] BY_ID = {MURMUR2_64, XXHASH_64, MURMUR3_128};
+
+    private final int id;
+    private final long defaultSeed;
+
+    HashStrategy(int id, long defaultSeed) {
+        this.id = id;
+        this.defaultSeed = defaultSeed;
+    }
+
+    /** The id written in the serialized sketches. */
+    public int id() {
+        return id;
+    }
+
+    public long defaultSeed() {
+        return defaultSeed;
+    }
+
+    /** Hashes data[offset, offset + length) with the given seed. */
+    public abstract long hash(byte[] data, int offset, int length, long seed);
+
+    /** Hashes the 8 little-endian bytes of value with the default seed, without the array. */
+    public abstract long hashLong(long value);
+
+    public long hash(byte[] data, int offset, int length) {
+        return hash(data, offset, length, defaultSeed);
+    }
+
+    public long hash(Object o) {
+        if (this == MURMUR2_64) {
+            return MurmurHash.hash64(o);
+        }
+        if (o == null) {
+            return 0l;
+        }
+        byte[] bytes;
+        if (o instanceof byte[]) {
+            bytes = (byte[]) o;
+        } else {
+            bytes = o.toString().getBytes();
+        }
+        return hash(bytes, 0, bytes.length, defaultSeed);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the id is unknown (a sketch written by a newer version)
+     */
+    public static HashStrategy forId(int id) {
+        if (id < 0 || id >= BY_ID.length) {
+            throw new IllegalArgumentException("Unknown hash id " + id);
+        }
+        return BY_ID[id];
+    }
+}
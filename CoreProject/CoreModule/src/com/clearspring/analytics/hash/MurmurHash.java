@@ -155,7 +155,54 @@ public class MurmurHash {
      * @return 64 bit hash of the given string
      */
     public static long hash64(final byte[] data, int length) {
-        return hash64(data, length, 0xe17a1465);
+        return hash64(data, length, DEFAULT_SEED_64);
+    }
+
+    /**
+     * Generates 64 bit hash from a slice of a byte array with default seed value. Same result as
+     * {@link #hash64(byte[], int)} on a copy of data[offset, offset + length). Not an overload of hash64:
+     * hash64(byte[], int, int) is already (data, length, seed).
+     *
+     * @param data   byte array to hash
+     * @param offset where the bytes to hash start
+     * @param length number of bytes to hash
+     * @return 64 bit hash of the given bytes
+     */
+    public static long hash64Range(final byte[] data, int offset, int length) {
+        return hash64(data, offset, length, DEFAULT_SEED_64);
+    }
+
+    /**
+     * The seed used by {@link #hash64(byte[], int)} and {@link #hash64(Object)}.
+     */
+    public static final int DEFAULT_SEED_64 = 0xe17a1465;
+
+    /**
+     * Generates 64 bit hash of a long with the default seed: the same as {@link #hash64(byte[], int)}
+     * on its 8 bytes in little-endian order, without the array.
+     *
+     * @param data the value to hash
+     * @return 64 bit hash of the given value
+     */
+    public static long hash64Long(long data) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        long h = (DEFAULT_SEED_64 & 0xffffffffl) ^ (8 * m);
+
+        long k = data;
+        k *= m;
+        k ^= k >>> r;
+        k *= m;
+
+        h ^= k;
+        h *= m;
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
     }
 
 
@@ -168,6 +215,20 @@ public class MurmurHash {
      * @return 64 bit hash of the given array
      */
     public static long hash64(final byte[] data, int length, int seed) {
+        return hash64(data, 0, length, seed);
+    }
+
+    /**
+     * Generates 64 bit hash from a slice of a byte array, with the given seed. Same result as
+     * {@link #hash64(byte[], int, int)} (data, length, seed) on a copy of data[offset, offset + length).
+     *
+     * @param data   byte array to hash
+     * @param offset where the bytes to hash start
+     * @param length number of bytes to hash
+     * @param seed   initial seed value
+     * @return 64 bit hash of the given bytes
+     */
+    public static long hash64(final byte[] data, int offset, int length, int seed) {
         final long m = 0xc6a4a7935bd1e995L;
         final int r = 47;
 
@@ -176,7 +237,7 @@ public class MurmurHash {
         int length8 = length / 8;
 
         for (int i = 0; i < length8; i++) {
-            final int i8 = i * 8;
+            final int i8 = offset + i * 8;
             long k = ((long) data[i8 + 0] & 0xff) + (((long) data[i8 + 1] & 0xff) << 8)
                      + (((long) data[i8 + 2] & 0xff) << 16) + (((long) data[i8 + 3] & 0xff) << 24)
                      + (((long) data[i8 + 4] & 0xff) << 32) + (((long) data[i8 + 5] & 0xff) << 40)
@@ -190,21 +251,22 @@ public class MurmurHash {
             h *= m;
         }
 
+        final int tail = offset + (length & ~7);
         switch (length % 8) {
             case 7:
-                h ^= (long) (data[(length & ~7) + 6] & 0xff) << 48;
+                h ^= (long) (data[tail + 6] & 0xff) << 48;
             case 6:
-                h ^= (long) (data[(length & ~7) + 5] & 0xff) << 40;
+                h ^= (long) (data[tail + 5] & 0xff) << 40;
             case 5:
-                h ^= (long) (data[(length & ~7) + 4] & 0xff) << 32;
+                h ^= (long) (data[tail + 4] & 0xff) << 32;
             case 4:
-                h ^= (long) (data[(length & ~7) + 3] & 0xff) << 24;
+                h ^= (long) (data[tail + 3] & 0xff) << 24;
             case 3:
-                h ^= (long) (data[(length & ~7) + 2] & 0xff) << 16;
+                h ^= (long) (data[tail + 2] & 0xff) << 16;
             case 2:
-                h ^= (long) (data[(length & ~7) + 1] & 0xff) << 8;
+                h ^= (long) (data[tail + 1] & 0xff) << 8;
             case 1:
-                h ^= (long) (data[length & ~7] & 0xff);
+                h ^= (long) (data[tail] & 0xff);
                 h *= m;
         }
         ;
@@ -0,0 +1,111 @@
+package com.clearspring.analytics.hash;
+
+/**
+ * MurmurHash3 x64 128 bit (https://github.com/aappleby/smhasher), folded to 64 bits: the two halves
+ * of the 128 bit result are xor-ed together. The halves are the same as MurmurHash3_x64_128() with the same seed.
+ */
+public class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * Generates the folded 64 bit hash from a slice of a byte array, with the given seed.
+     *
+     * @param data   byte array to hash
+     * @param offset where the bytes to hash start
+     * @param length number of bytes to hash
+     * @param seed   initial seed value
+     * @return 64 bit hash of the given bytes
+     */
+    public static long hash128Folded(final byte[] data, int offset, int length, int seed) {
+        long h1 = seed & 0xffffffffL;
+        long h2 = seed & 0xffffffffL;
+
+        final int blocks = offset + (length & ~15);
+        for (int i = offset; i < blocks; i += 16) {
+            long k1 = XxHash64.getLong(data, i);
+            long k2 = XxHash64.getLong(data, i + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int tail = length & 15;
+        if (tail > 8) {
+            long k2 = 0;
+            for (int i = tail - 1; i >= 8; i--) {
+                k2 = (k2 << 8) | (data[blocks + i] & 0xff);
+            }
+            h2 ^= mixK2(k2);
+        }
+        if (tail > 0) {
+            long k1 = 0;
+            for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+                k1 = (k1 << 8) | (data[blocks + i] & 0xff);
+            }
+            h1 ^= mixK1(k1);
+        }
+
+        return fold(h1, h2, length);
+    }
+
+    /**
+     * Generates the folded 64 bit hash of a long: the same as {@link #hash128Folded(byte[], int, int, int)}
+     * on its 8 bytes in little-endian order, without the array.
+     *
+     * @param data the value to hash
+     * @param seed initial seed value
+     * @return 64 bit hash of the given value
+     */
+    public static long hash128FoldedLong(long data, int seed) {
+        long h1 = seed & 0xffffffffL;
+        long h2 = seed & 0xffffffffL;
+        h1 ^= mixK1(data);
+        return fold(h1, h2, 8);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fold(long h1, long h2, int length) {
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return h1 ^ h2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
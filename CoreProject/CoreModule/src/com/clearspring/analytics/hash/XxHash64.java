@@ -0,0 +1,118 @@
+package com.clearspring.analytics.hash;
+
+/**
+ * xxHash64, a very fast non-cryptographic 64 bit hash. See https://github.com/Cyan4973/xxHash
+ * for the reference implementation; the results are the same as XXH64() with the same seed.
+ */
+public class XxHash64 {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * Generates 64 bit hash from a slice of a byte array, with the given seed.
+     *
+     * @param data   byte array to hash
+     * @param offset where the bytes to hash start
+     * @param length number of bytes to hash
+     * @param seed   initial seed value
+     * @return 64 bit hash of the given bytes
+     */
+    public static long hash64(final byte[] data, int offset, int length, long seed) {
+        final int end = offset + length;
+        int pos = offset;
+        long h;
+
+        if (length >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+            final int limit = end - 32;
+            do {
+                v1 = round(v1, getLong(data, pos));
+                v2 = round(v2, getLong(data, pos + 8));
+                v3 = round(v3, getLong(data, pos + 16));
+                v4 = round(v4, getLong(data, pos + 24));
+                pos += 32;
+            } while (pos <= limit);
+
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME64_5;
+        }
+
+        h += length;
+
+        while (pos + 8 <= end) {
+            h ^= round(0, getLong(data, pos));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+            pos += 8;
+        }
+        if (pos + 4 <= end) {
+            h ^= (getInt(data, pos) & 0xffffffffL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            pos += 4;
+        }
+        while (pos < end) {
+            h ^= (data[pos] & 0xff) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+            pos++;
+        }
+
+        return avalanche(h);
+    }
+
+    /**
+     * Generates 64 bit hash of a long: the same as {@link #hash64(byte[], int, int, long)} on its 8 bytes
+     * in little-endian order, without the array.
+     *
+     * @param data the value to hash
+     * @param seed initial seed value
+     * @return 64 bit hash of the given value
+     */
+    public static long hash64Long(long data, long seed) {
+        long h = seed + PRIME64_5 + 8;
+        h ^= round(0, data);
+        h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+        return avalanche(h);
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    static long getLong(byte[] data, int i) {
+        return ((long) data[i] & 0xff) | (((long) data[i + 1] & 0xff) << 8)
+               | (((long) data[i + 2] & 0xff) << 16) | (((long) data[i + 3] & 0xff) << 24)
+               | (((long) data[i + 4] & 0xff) << 32) | (((long) data[i + 5] & 0xff) << 40)
+               | (((long) data[i + 6] & 0xff) << 48) | (((long) data[i + 7] & 0xff) << 56);
+    }
+
+    private static int getInt(byte[] data, int i) {
+        return (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16) | ((data[i + 3] & 0xff) << 24);
+    }
+}
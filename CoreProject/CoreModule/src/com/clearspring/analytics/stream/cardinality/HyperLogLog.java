@@ -146,6 +146,18 @@ public class HyperLogLog implements ICardinality, Serializable {
         return registerSet.updateIfGreater(j, r);
     }
 
+    @Override
+    public boolean offerHashed(long[] hashedValues, int offset, int length) {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++) {
+            final long hashedValue = hashedValues[i];
+            final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
+            final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+            modified |= registerSet.updateIfGreater(j, r);
+        }
+        return modified;
+    }
+
     @Override
     public boolean offerHashed(int hashedValue) {
         // j becomes the binary address determined by the first b log2m of x
@@ -164,16 +176,10 @@ public class HyperLogLog implements ICardinality, Serializable {
 
     @Override
     public long cardinality() {
-        double registerSum = 0;
         int count = registerSet.count;
-        double zeros = 0.0;
-        for (int j = 0; j < registerSet.count; j++) {
-            int val = registerSet.get(j);
-            registerSum += 1.0 / (1 << val);
-            if (val == 0) {
-                zeros++;
-            }
-        }
+        int[] histogram = registerSet.histogram();
+        double registerSum = registerSum(histogram);
+        double zeros = histogram[0];
 
         double estimate = alphaMM * (1 / registerSum);
 
@@ -379,6 +385,28 @@ public class HyperLogLog implements ICardinality, Serializable {
         }
     }
 
+    /// INVERSE_POWERS_OF_2[r] = 2^-r, for every value a register can hold
+    private static final double[] INVERSE_POWERS_OF_2 = new double[RegisterSet.REGISTER_VALUES];
+
+    static {
+        for (int r = 0; r < INVERSE_POWERS_OF_2.length; r++) {
+            INVERSE_POWERS_OF_2[r] = Math.scalb(1.0, -r);
+        }
+    }
+
+    /**
+     * The sum of 2^-register over all the registers, from their histogram (see RegisterSet.histogram()).
+     * Every term is a power of 2 between 2^-31 and the number of registers: the sum is exact,
+     * so it does not depend on the order of the additions.
+     */
+    protected static double registerSum(int[] histogram) {
+        double registerSum = 0;
+        for (int r = 0; r < histogram.length; r++) {
+            registerSum += histogram[r] * INVERSE_POWERS_OF_2[r];
+        }
+        return registerSum;
+    }
+
     protected static double linearCounting(int m, double V) {
         return m * Math.log(m / V);
     }
@@ -43,6 +43,17 @@ public interface ICardinality {
      */
     boolean offerHashed(int hashedInt);
 
+    /**
+     * Offer a batch of values already hashed, same as calling offerHashed(long) on each of them
+     * but with less work per value.
+     *
+     * @param hashedLongs - the hashes of the items to offer to the estimator
+     * @param offset      - where the batch starts in hashedLongs
+     * @param length      - the number of hashes in the batch
+     * @return false if the value returned by cardinality() is unaffected by all of them
+     */
+    boolean offerHashed(long[] hashedLongs, int offset, int length);
+
     /**
      * @return the number of unique elements in the stream or an estimate thereof
      */
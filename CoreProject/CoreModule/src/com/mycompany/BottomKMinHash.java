@@ -0,0 +1,138 @@
+package com.mycompany;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/*
+The MinHash structure of HyperLogLogPlusAndMinHash: the k smallest distinct hashes seen, kept sorted in a long[].
+Same content and order (signed longs) as the TreeSet<Long> it replaces, for about 8 bytes per hash instead of
+a boxed Long plus a tree node (~56 bytes):
+
+    offer()   once full, a hash not below the current k-th smallest is rejected by one comparison (the usual case);
+              otherwise a binary search finds its place and the bigger ones are shifted (System.arraycopy).
+    addAll()  one linear merge of the two sorted arrays.
+
+The array grows (doubling) up to k: a group which only sees a few values does not pay for k longs.
+ */
+public class BottomKMinHash implements Serializable {
+
+    private static final long serialVersionUID = 6157903423512807715L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /// The maximum number of hashes kept
+    private final int k;
+
+    /// values[0, size) are the hashes, strictly increasing. Only that part is serialized.
+    private transient long[] values;
+    private int size;
+
+    public BottomKMinHash(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.values = new long[Math.min(k, INITIAL_CAPACITY)];
+    }
+
+    /// Adds a hash. Returns false when it was already there, or is not among the k smallest.
+    public boolean offer(long hash) {
+        if (size == k && hash >= values[size - 1]) {
+            return false;
+        }
+        int index = Arrays.binarySearch(values, 0, size, hash);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+
+        if (size < k) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(k, values.length * 2));
+            }
+            size++;
+        }
+        // the biggest one falls off the end when it was full
+        System.arraycopy(values, index, values, index + 1, size - 1 - index);
+        values[index] = hash;
+        return true;
+    }
+
+    /// Keeps the k smallest distinct hashes of both (other is left unchanged).
+    public void addAll(BottomKMinHash other) {
+        if (other.size == 0) {
+            return;
+        }
+        long[] merged = new long[Math.min(k, size + other.size)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (n < merged.length && (i < size || j < other.size)) {
+            long next;
+            if (j == other.size || (i < size && values[i] < other.values[j])) {
+                next = values[i++];
+            } else if (i == size || other.values[j] < values[i]) {
+                next = other.values[j++];
+            } else {
+                next = values[i++];     // in both
+                j++;
+            }
+            merged[n++] = next;
+        }
+        values = merged;
+        size = n;
+    }
+
+    public boolean contains(long hash) {
+        return Arrays.binarySearch(values, 0, size, hash) >= 0;
+    }
+
+    /// The i-th smallest hash
+    public long get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+        return values[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /// The hashes, in increasing order.
+    public long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /// The hashes as a TreeSet<Long> (the former MinHash structure).
+    public TreeSet<Long> toSortedSet() {
+        TreeSet<Long> set = new TreeSet<Long>();
+        for (int i = 0; i < size; i++) {
+            set.add(values[i]);
+        }
+        return set;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        for (int i = 0; i < size; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        values = new long[Math.max(size, Math.min(k, INITIAL_CAPACITY))];
+        for (int i = 0; i < size; i++) {
+            values[i] = in.readLong();
+        }
+    }
+}
@@ -3,6 +3,10 @@ package com.mycompany;
 import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.TreeSet;
 
@@ -11,8 +15,20 @@ Reference Code: https://github.com/AdRoll/cantor/blob/master/src/main/java/com/a
  */
 
 // We can serialize this class.
+// The serialized form is still the one of the TreeSet<Long> version (see serialPersistentFields): instances stored
+// before (testSerialize.fromHllpAMhToByteArray) are read back, and older readers read the new ones.
 public class HyperLogLogPlusAndMinHash implements Serializable {
 
+    /// The class had no serialVersionUID: this is the one it was given by default, with which instances were stored.
+    private static final long serialVersionUID = -1238430258196388561L;
+
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("hllp", HyperLogLogPlus.class),
+            new ObjectStreamField("p", int.class),
+            new ObjectStreamField("ts", TreeSet.class),
+            new ObjectStreamField("k", int.class)
+    };
+
     // for better management and not causing a mess!
     private HyperLogLogPlus hllp = null;
     private int p;  // once an HLL instance is created, we cannot get its p.
@@ -25,8 +41,8 @@ public class HyperLogLogPlusAndMinHash implements Serializable {
      */
     public static final int DEFAULT_K = 8192;
 
-    /** MinHash structure */
-    private TreeSet<Long> ts;
+    /** MinHash structure: the k smallest hashes (serialized as the TreeSet<Long> "ts") */
+    private transient BottomKMinHash minHash;
     /** precision of MinHash structure */
     private int k;
 
@@ -34,7 +50,7 @@ public class HyperLogLogPlusAndMinHash implements Serializable {
         this.p = p;
         this.hllp = new HyperLogLogPlus(this.p);
         this.k = k;
-        this.ts = new TreeSet<Long>();
+        this.minHash = new BottomKMinHash(k);
     }
 
     public HyperLogLogPlusAndMinHash(){
@@ -45,17 +61,22 @@ public class HyperLogLogPlusAndMinHash implements Serializable {
     public void offer(Object v) {
         long x = MurmurHash.hash64(v);
 
-        this.ts.add(x);
-        if(this.ts.size() > this.k) {
-            this.ts.pollLast();     // remove the largest item
+        this.minHash.offer(x);   // the largest one is dropped when there are more than k
+        this.hllp.offerHashed(x);
+    }
+
+    // Same as offer() for a batch of values already hashed with MurmurHash.hash64().
+    public void offerHashed(long[] hashes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            this.minHash.offer(hashes[i]);
         }
 
-        this.hllp.offerHashed(x);
+        this.hllp.offerHashed(hashes, offset, length);
     }
 
     public long cardinality(){
         // we can check if (ts.size() < k), then return ts.size() ==> Exact Method!!!!!
-        // TreeSet is helpful only when making the intersection.
+        // The MinHash is helpful only when making the intersection.
 
         return this.hllp.cardinality();
     }
@@ -64,12 +85,12 @@ public class HyperLogLogPlusAndMinHash implements Serializable {
     // It is expected that the other HyperLogLogPlusAndMinHash has the same k and p.
     public void addAll(HyperLogLogPlusAndMinHash other) throws Exception{
         this.hllp.addAll(other.hllp);
-        this.ts.addAll(other.ts);
+        this.minHash.addAll(other.minHash);   // one linear merge, keeps the k smallest
+    }
 
-        int mustReduce = this.ts.size() - this.k;
-        for(int i=0; i < mustReduce; i++){
-            this.ts.pollLast();
-        }
+    // See HyperLogLogPlus.flush(): afterwards, merging this instance into others only reads it.
+    void flush() {
+        this.hllp.flush();
     }
 
     // Create a new HyperLogLogPlusAndMinHash, absorb data from THIS instance and ALL OTHER instances.
@@ -102,38 +123,36 @@ public class HyperLogLogPlusAndMinHash implements Serializable {
 
         // If there is one set equal to zero, the intersection is always zero.
         for (HyperLogLogPlusAndMinHash hllpmh : hs) {
-            if (hllpmh.getMinHash().size() == 0) {
+            if (hllpmh.minHash.size() == 0) {
                 return 0;
             }
         }
 
-        // Process the trees...
-        TreeSet<Long> allTrees = new TreeSet<Long>();
+        // Process the MinHash structures...
         int mink = Integer.MAX_VALUE;
         int maxs = Integer.MIN_VALUE;
 
         for(HyperLogLogPlusAndMinHash h : hs) {
-            allTrees.addAll(h.getMinHash());
             mink = Math.min(mink, h.getK());	            // Get the Smallest K (maybe redundant as we expect they all have the same k and p)
-            maxs = Math.max(maxs, h.getMinHash().size());   // Get the Biggest Tree Size
+            maxs = Math.max(maxs, h.minHash.size());   // Get the Biggest MinHash Size
         }
 
-        mink = maxs < mink ? maxs : mink;   // If biggest tree size < smallest K ==> Use biggest tree size
-        // If smallest K < biggest tree size ==> Use smallest K
+        mink = maxs < mink ? maxs : mink;   // If biggest MinHash size < smallest K ==> Use biggest MinHash size
+        // If smallest K < biggest MinHash size ==> Use smallest K
+
+        // Only the mink smallest hashes of the union are looked at: merge them (linearly) and nothing more.
+        BottomKMinHash union = new BottomKMinHash(mink);
+        for(HyperLogLogPlusAndMinHash h : hs) {
+            union.addAll(h.minHash);
+        }
 
         int result = 0;
-        for(int i = 0; i < mink; i++) {
-            long l = 0;
-            try {
-                l = allTrees.pollFirst(); // Should we use the elements of the smallest set???
-            } catch(NullPointerException e) {
-                //This can happen if k is larger than
-                //the number of insertions.
-                break;
-            }
+        // The union can be smaller than mink: this can happen if k is larger than the number of insertions.
+        for(int i = 0; i < union.size(); i++) {
+            long l = union.get(i);
             boolean allContain = true;
             for(HyperLogLogPlusAndMinHash h : hs) {
-                if(!h.getMinHash().contains(l)) {
+                if(!h.minHash.contains(l)) {
                     allContain = false;
                     break;
                 }
@@ -166,8 +185,43 @@ public class HyperLogLogPlusAndMinHash implements Serializable {
         return (long)Math.round(jcIn * hllpAll.cardinality());
     }
 
+    /**
+     * The MinHash structure as a TreeSet, as before the BottomKMinHash. It is now a new copy at each call: it is not
+     * updated by later offers, and changing it does not change this instance (it used to be the live set).
+     *
+     * @deprecated use {@link #getBottomK()}, which does not box the hashes
+     */
+    @Deprecated
     public TreeSet<Long> getMinHash() {
-        return ts;
+        return minHash.toSortedSet();
+    }
+
+    public BottomKMinHash getBottomK() {
+        return minHash;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("hllp", hllp);
+        fields.put("p", p);
+        fields.put("ts", minHash.toSortedSet());
+        fields.put("k", k);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        hllp = (HyperLogLogPlus) fields.get("hllp", null);
+        p = fields.get("p", 0);
+        k = fields.get("k", DEFAULT_K);
+        minHash = new BottomKMinHash(k);
+        TreeSet<Long> ts = (TreeSet<Long>) fields.get("ts", null);
+        if (ts != null) {
+            for (long hash : ts) {
+                minHash.offer(hash);
+            }
+        }
     }
 
     public int getK() {
@@ -0,0 +1,255 @@
+package com.mycompany;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+Merges big batches of sketches on all the cores, on a ForkJoinPool, in one of two ways:
+
+    register range  when all the inputs are in-memory and normal (the usual case of a few big sketches): one new
+                    normal instance is the target, its register words are split in ranges of at most RANGE_WORDS and
+                    each task merges its range of every input into it. The tasks write disjoint words: nothing else
+                    is shared, and no intermediate instance is built.
+    tree reduction  otherwise (sparse or serialized inputs, HyperLogLogPlusAndMinHash): the list is split in halves
+                    until a slice has at most LEAF_SIZE sketches; each slice is folded into its own new instance, then
+                    the two halves of every split are merged together. No result is shared between threads, and the
+                    registers of N sketches are only merged N - 1 times.
+
+The in-memory inputs are only read by the pool threads: their pending sparse offers are flushed first, on the
+calling thread (HyperLogLogPlus.flush(), which does not change their estimate). An input may appear several times
+in the list, but nothing must be offered to the inputs while they are being merged.
+
+    HyperLogLogPlus all = ParallelMerge.mergeSerialized(dailySketches, true);   // bytes from testSerialize.toByteArray2()
+    HyperLogLogPlus all = ParallelMerge.merge(hllps);                            // in-memory instances
+
+Sparse or still serialized inputs are not split by register range: each task would have to decode all of them
+to find its own registers.
+ */
+public class ParallelMerge {
+
+    /// Below this number of sketches, a slice is merged on the current thread.
+    static final int LEAF_SIZE = 8;
+
+    /// Register words (6 registers each) merged by one task when the inputs are split by register range.
+    static final int RANGE_WORDS = 2048;
+
+    /// Merges the sketches serialized by testSerialize.toByteArray2(), in the common pool.
+    public static HyperLogLogPlus mergeSerialized(List<byte[]> sketches, boolean useCompression) throws Exception {
+        return mergeSerialized(sketches, useCompression, ForkJoinPool.commonPool());
+    }
+
+    public static HyperLogLogPlus mergeSerialized(List<byte[]> sketches, final boolean useCompression, ForkJoinPool pool) throws Exception {
+        checkNotEmpty(sketches);
+        return invoke(pool, new MergeTask<HyperLogLogPlus, byte[]>(sketches, 0, sketches.size(), new Fold<HyperLogLogPlus, byte[]>() {
+            @Override
+            public HyperLogLogPlus copy(byte[] first) throws Exception {
+                return testSerialize.fromByteArray2(first, useCompression);
+            }
+
+            @Override
+            public void add(HyperLogLogPlus target, byte[] other) throws Exception {
+                testSerialize.mergeByteArray2(target, other, 0, other.length, useCompression);
+            }
+
+            @Override
+            public void combine(HyperLogLogPlus target, HyperLogLogPlus other) throws Exception {
+                target.addAll(other);
+            }
+        }));
+    }
+
+    /// Merges in-memory instances (only flushed, see above), in the common pool.
+    public static HyperLogLogPlus merge(List<HyperLogLogPlus> sketches) throws Exception {
+        return merge(sketches, ForkJoinPool.commonPool());
+    }
+
+    public static HyperLogLogPlus merge(List<HyperLogLogPlus> sketches, ForkJoinPool pool) throws Exception {
+        checkNotEmpty(sketches);
+        boolean allNormal = true;
+        for (HyperLogLogPlus sketch : sketches) {
+            sketch.flush();
+            allNormal &= !sketch.isSparse();
+        }
+        if (allNormal) {
+            return mergeRegisterRanges(sketches, pool);
+        }
+        return invoke(pool, new MergeTask<HyperLogLogPlus, HyperLogLogPlus>(sketches, 0, sketches.size(), new Fold<HyperLogLogPlus, HyperLogLogPlus>() {
+            @Override
+            public HyperLogLogPlus copy(HyperLogLogPlus first) throws Exception {
+                return (HyperLogLogPlus) first.merge();     // a new instance with the same p and sp
+            }
+
+            @Override
+            public void add(HyperLogLogPlus target, HyperLogLogPlus other) throws Exception {
+                target.addAll(other);
+            }
+
+            @Override
+            public void combine(HyperLogLogPlus target, HyperLogLogPlus other) throws Exception {
+                target.addAll(other);
+            }
+        }));
+    }
+
+    /// Same for HyperLogLogPlusAndMinHash (HLL++ and MinHash merged together), in the common pool.
+    public static HyperLogLogPlusAndMinHash mergeWithMinHash(List<HyperLogLogPlusAndMinHash> sketches) throws Exception {
+        return mergeWithMinHash(sketches, ForkJoinPool.commonPool());
+    }
+
+    public static HyperLogLogPlusAndMinHash mergeWithMinHash(List<HyperLogLogPlusAndMinHash> sketches, ForkJoinPool pool) throws Exception {
+        checkNotEmpty(sketches);
+        for (HyperLogLogPlusAndMinHash sketch : sketches) {
+            sketch.flush();
+        }
+        return invoke(pool, new MergeTask<HyperLogLogPlusAndMinHash, HyperLogLogPlusAndMinHash>(sketches, 0, sketches.size(),
+                new Fold<HyperLogLogPlusAndMinHash, HyperLogLogPlusAndMinHash>() {
+            @Override
+            public HyperLogLogPlusAndMinHash copy(HyperLogLogPlusAndMinHash first) throws Exception {
+                return first.merge();
+            }
+
+            @Override
+            public void add(HyperLogLogPlusAndMinHash target, HyperLogLogPlusAndMinHash other) throws Exception {
+                target.addAll(other);
+            }
+
+            @Override
+            public void combine(HyperLogLogPlusAndMinHash target, HyperLogLogPlusAndMinHash other) throws Exception {
+                target.addAll(other);
+            }
+        }));
+    }
+
+    /// Normal in-memory inputs: each task merges its register words of every input into the same new instance.
+    private static HyperLogLogPlus mergeRegisterRanges(List<HyperLogLogPlus> sketches, ForkJoinPool pool) throws Exception {
+        HyperLogLogPlus target = sketches.get(0).newNormalEstimator();
+        for (HyperLogLogPlus sketch : sketches) {
+            // an empty range: only checks p and the hash, on this thread
+            target.addAllRegisters(sketch, 0, 0);
+        }
+        invoke(pool, new RangeTask(target, sketches, 0, target.getRegisterWordCount()));
+        return target;
+    }
+
+    private static void checkNotEmpty(List<?> sketches) {
+        if (sketches.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to merge");
+        }
+    }
+
+    private static <T> T invoke(ForkJoinPool pool, ForkJoinTask<T> task) throws Exception {
+        try {
+            return pool.invoke(task);
+        } catch (RuntimeException ex) {
+            // give back the exception thrown by the merge itself
+            for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+                if (cause instanceof MergeFailure && !(cause.getCause() instanceof MergeFailure)) {
+                    throw (Exception) cause.getCause();
+                }
+            }
+            throw ex;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// How to merge inputs of type S into a result of type T.
+    private interface Fold<T, S> {
+        /// A new result holding the first input only.
+        T copy(S first) throws Exception;
+
+        void add(T target, S other) throws Exception;
+
+        void combine(T target, T other) throws Exception;
+    }
+
+    private static final class MergeTask<T, S> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<S> inputs;
+        private final int from;
+        private final int to;
+        private final Fold<T, S> fold;
+
+        MergeTask(List<S> inputs, int from, int to, Fold<T, S> fold) {
+            this.inputs = inputs;
+            this.from = from;
+            this.to = to;
+            this.fold = fold;
+        }
+
+        @Override
+        protected T compute() {
+            try {
+                if (to - from <= LEAF_SIZE) {
+                    T result = fold.copy(inputs.get(from));
+                    for (int i = from + 1; i < to; i++) {
+                        fold.add(result, inputs.get(i));
+                    }
+                    return result;
+                }
+
+                int middle = (from + to) >>> 1;
+                MergeTask<T, S> left = new MergeTask<T, S>(inputs, from, middle, fold);
+                left.fork();
+                T right = new MergeTask<T, S>(inputs, middle, to, fold).compute();
+                T result = left.join();
+                fold.combine(result, right);
+                return result;
+            } catch (MergeFailure ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new MergeFailure(ex);
+            }
+        }
+    }
+
+    /// Merges the register words [fromWord, toWord) of all the inputs into target, split in ranges of at most RANGE_WORDS.
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final HyperLogLogPlus target;
+        private final List<HyperLogLogPlus> inputs;
+        private final int fromWord;
+        private final int toWord;
+
+        RangeTask(HyperLogLogPlus target, List<HyperLogLogPlus> inputs, int fromWord, int toWord) {
+            this.target = target;
+            this.inputs = inputs;
+            this.fromWord = fromWord;
+            this.toWord = toWord;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (toWord - fromWord <= RANGE_WORDS) {
+                    for (HyperLogLogPlus input : inputs) {
+                        target.addAllRegisters(input, fromWord, toWord);
+                    }
+                    return;
+                }
+
+                int middle = (fromWord + toWord) >>> 1;
+                invokeAll(new RangeTask(target, inputs, fromWord, middle), new RangeTask(target, inputs, middle, toWord));
+            } catch (MergeFailure ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new MergeFailure(ex);
+            }
+        }
+    }
+
+    /// Carries the checked exceptions of the merge out of compute().
+    public static class MergeFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public MergeFailure(Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.mycompany;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+Compression of serialized sketches. An encoded sketch starts with one header byte telling how the rest is compressed:
+
+    [NONE_ID]    [sketch bytes]
+    [LZF_ID]     [varint length of the sketch] [LZF blocks]
+    [DEFLATE_ID] [varint length of the sketch] [zlib stream]
+
+Sketches written before the header existed are still recognized by their first byte:
+a zlib stream (what testSerialize.compressData() wrote) starts with 0x78, an uncompressed HyperLogLogPlus
+starts with its version (0xFF, the version is negative) or with p (0x00, legacy encoding).
+
+The Deflater/Inflater and the scratch buffers are kept per thread and reused: a Hive task calls this once per group.
+ */
+public enum SketchCodec {
+
+    /** No compression at all. */
+    NONE(SketchCodec.NONE_ID, 0),
+    /** LZF: byte-oriented LZ77, much cheaper than Deflate but also compresses less. */
+    LZF(SketchCodec.LZF_ID, 0),
+    /** Deflate with the given level (see java.util.zip.Deflater). */
+    DEFLATE_FAST(SketchCodec.DEFLATE_ID, Deflater.BEST_SPEED),
+    DEFLATE(SketchCodec.DEFLATE_ID, Deflater.DEFAULT_COMPRESSION),
+    DEFLATE_BEST(SketchCodec.DEFLATE_ID, Deflater.BEST_COMPRESSION);
+
+    static final byte NONE_ID = 1;
+    static final byte LZF_ID = 2;
+    static final byte DEFLATE_ID = 3;
+
+    private static final int LEGACY_ZLIB_HEADER = 0x78;
+
+    private final byte id;
+    private final int level;
+
+    SketchCodec(byte id, int level) {
+        this.id = id;
+        this.level = level;
+    }
+
+    /** Compresses data[offset, offset + length) and prepends the header byte. */
+    public byte[] encode(byte[] data, int offset, int length) throws IOException {
+        if (id == NONE_ID) {
+            byte[] result = new byte[length + 1];
+            result[0] = NONE_ID;
+            System.arraycopy(data, offset, result, 1, length);
+            return result;
+        }
+
+        Scratch scratch = SCRATCH.get();
+        // header + the length + the worst case of both codecs (incompressible data)
+        byte[] out = scratch.output(6 + length + length / 32 + 64);
+        out[0] = id;
+        int pos = writeVarInt(length, out, 1);
+
+        if (id == LZF_ID) {
+            pos = lzfCompress(data, offset, length, out, pos, scratch.hashTable());
+        } else {
+            Deflater deflater = scratch.deflater(level);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (pos == out.length) {
+                    out = scratch.grow(pos);
+                }
+                pos += deflater.deflate(out, pos, out.length - pos);
+            }
+            deflater.reset();
+        }
+
+        return Arrays.copyOf(out, pos);
+    }
+
+    public byte[] encode(byte[] data) throws IOException {
+        return encode(data, 0, data.length);
+    }
+
+    /**
+     * Decompresses an encoded (or legacy) sketch. The result is a view over data itself when nothing has to be
+     * decompressed, otherwise over a per-thread buffer which is overwritten by the next decode() of the same thread.
+     */
+    public static ByteBuffer decode(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return ByteBuffer.wrap(data, offset, 0);
+        }
+
+        int first = data[offset] & 0xff;
+        if (first == NONE_ID) {
+            return ByteBuffer.wrap(data, offset + 1, length - 1);
+        }
+        if (first == LEGACY_ZLIB_HEADER) {
+            return inflate(data, offset, length, -1);
+        }
+        if (first != LZF_ID && first != DEFLATE_ID) {
+            // an uncompressed sketch of the old days
+            return ByteBuffer.wrap(data, offset, length);
+        }
+
+        int end = offset + length;
+        int pos = offset + 1;
+        int originalLength = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (pos >= end) {
+                throw new IOException("Truncated sketch header");
+            }
+            b = data[pos++];
+            originalLength |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (first == DEFLATE_ID) {
+            return inflate(data, pos, end - pos, originalLength);
+        }
+        byte[] out = SCRATCH.get().decoded(originalLength);
+        lzfDecompress(data, pos, end, out, originalLength);
+        return ByteBuffer.wrap(out, 0, originalLength);
+    }
+
+    public static ByteBuffer decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+    /// originalLength < 0 when it is unknown (legacy streams).
+    private static ByteBuffer inflate(byte[] data, int offset, int length, int originalLength) throws IOException {
+        Scratch scratch = SCRATCH.get();
+        Inflater inflater = scratch.inflater();
+        byte[] out = scratch.decoded(originalLength >= 0 ? originalLength : length * 4);
+        int pos = 0;
+        try {
+            inflater.setInput(data, offset, length);
+            while (!inflater.finished()) {
+                if (pos == out.length) {
+                    out = scratch.growDecoded(pos);
+                }
+                int n = inflater.inflate(out, pos, out.length - pos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated or corrupt sketch");
+                }
+                pos += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.reset();
+        }
+        return ByteBuffer.wrap(out, 0, pos);
+    }
+
+    private static int writeVarInt(int value, byte[] out, int pos) {
+        while ((value & 0xFFFFFF80) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // LZF (http://oldhome.schmorp.de/marc/liblzf.html), same block format as liblzf:
+    // 000LLLLL                      => L + 1 literal bytes follow
+    // LLLooooo oooooooo             => back reference of L + 2 bytes, offset o + 1 (L in 1..6)
+    // 111ooooo LLLLLLLL oooooooo    => back reference of L + 9 bytes, offset o + 1
+    private static final int LZF_HASH_LOG = 14;
+    private static final int LZF_MAX_LITERAL = 32;
+    private static final int LZF_MAX_OFF = 1 << 13;
+    private static final int LZF_MAX_REF = (1 << 8) + (1 << 3);
+
+    private static int lzfHash(byte[] in, int pos) {
+        int v = ((in[pos] & 0xff) << 16) | ((in[pos + 1] & 0xff) << 8) | (in[pos + 2] & 0xff);
+        return (v * 0x9E3779B1) >>> (32 - LZF_HASH_LOG);
+    }
+
+    /// hashTable holds (position + 1) of the last occurrence of each 3-byte hash, 0 = none.
+    private static int lzfCompress(byte[] in, int inPos, int inLength, byte[] out, int outPos, int[] hashTable) {
+        int inEnd = inPos + inLength;
+        int literals = 0;
+        int literalHeader = outPos++;   // reserved for the length of the current literal run
+
+        int ip = inPos;
+        while (ip < inEnd - 2) {
+            int h = lzfHash(in, ip);
+            int ref = hashTable[h] - 1;
+            hashTable[h] = ip + 1;
+
+            int off = ip - ref - 1;
+            if (ref >= inPos && off < LZF_MAX_OFF
+                    && in[ref] == in[ip] && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+                int maxLength = Math.min(inEnd - ip, LZF_MAX_REF);
+                int len = 3;
+                while (len < maxLength && in[ref + len] == in[ip + len]) {
+                    len++;
+                }
+
+                // close the literal run (or give back its header if it is empty)
+                if (literals == 0) {
+                    outPos--;
+                } else {
+                    out[literalHeader] = (byte) (literals - 1);
+                    literals = 0;
+                }
+
+                int l = len - 2;
+                if (l < 7) {
+                    out[outPos++] = (byte) ((off >>> 8) + (l << 5));
+                } else {
+                    out[outPos++] = (byte) ((off >>> 8) + (7 << 5));
+                    out[outPos++] = (byte) (l - 7);
+                }
+                out[outPos++] = (byte) off;
+
+                literalHeader = outPos++;
+                ip += len;
+            } else {
+                out[outPos++] = in[ip++];
+                if (++literals == LZF_MAX_LITERAL) {
+                    out[literalHeader] = (byte) (LZF_MAX_LITERAL - 1);
+                    literals = 0;
+                    literalHeader = outPos++;
+                }
+            }
+        }
+
+        while (ip < inEnd) {
+            out[outPos++] = in[ip++];
+            if (++literals == LZF_MAX_LITERAL) {
+                out[literalHeader] = (byte) (LZF_MAX_LITERAL - 1);
+                literals = 0;
+                literalHeader = outPos++;
+            }
+        }
+        if (literals == 0) {
+            outPos--;
+        } else {
+            out[literalHeader] = (byte) (literals - 1);
+        }
+
+        // only the positions of this input are valid in the table
+        Arrays.fill(hashTable, 0);
+        return outPos;
+    }
+
+    private static void lzfDecompress(byte[] in, int inPos, int inEnd, byte[] out, int outLength) throws IOException {
+        int op = 0;
+        try {
+            while (inPos < inEnd) {
+                int ctrl = in[inPos++] & 0xff;
+                if (ctrl < LZF_MAX_LITERAL) {
+                    int len = ctrl + 1;
+                    System.arraycopy(in, inPos, out, op, len);
+                    inPos += len;
+                    op += len;
+                } else {
+                    int len = ctrl >>> 5;
+                    if (len == 7) {
+                        len += in[inPos++] & 0xff;
+                    }
+                    len += 2;
+                    int ref = op - ((ctrl & 0x1f) << 8) - (in[inPos++] & 0xff) - 1;
+                    if (ref < 0 || op + len > outLength) {
+                        throw new IOException("Corrupt LZF block");
+                    }
+                    // byte by byte: the reference may overlap what is being written
+                    for (int i = 0; i < len; i++) {
+                        out[op++] = out[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Corrupt LZF block");
+        }
+        if (op != outLength) {
+            throw new IOException("Corrupt LZF block");
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Per-thread state, reused from one call to the next.
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final class Scratch {
+        private final Deflater[] deflaters = new Deflater[11];  // by level + 1 (DEFAULT_COMPRESSION is -1)
+        private Inflater inflater;
+        private int[] hashTable;
+        private byte[] output = new byte[4096];
+        private byte[] decoded = new byte[4096];
+
+        Deflater deflater(int level) {
+            Deflater deflater = deflaters[level + 1];
+            if (deflater == null) {
+                deflater = new Deflater(level);
+                deflaters[level + 1] = deflater;
+            }
+            return deflater;
+        }
+
+        Inflater inflater() {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            return inflater;
+        }
+
+        int[] hashTable() {
+            if (hashTable == null) {
+                hashTable = new int[1 << LZF_HASH_LOG];
+            }
+            return hashTable;
+        }
+
+        byte[] output(int capacity) {
+            if (output.length < capacity) {
+                output = new byte[capacity];
+            }
+            return output;
+        }
+
+        byte[] grow(int used) {
+            output = Arrays.copyOf(output, used * 2);
+            return output;
+        }
+
+        byte[] decoded(int capacity) {
+            if (decoded.length < capacity) {
+                decoded = new byte[capacity];
+            }
+            return decoded;
+        }
+
+        byte[] growDecoded(int used) {
+            decoded = Arrays.copyOf(decoded, used * 2);
+            return decoded;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.mycompany;
 import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -99,6 +100,7 @@ public class testSerialize {
     }
 
     /* This function uses HyperLogLog stream-lib Serialization to serialize the instance ==> Stream-Lib's own format. */
+    /* useCompression: the legacy raw zlib stream (no codec header), readable by the JARs built before SketchCodec. */
     public static byte[] toByteArray2(HyperLogLogPlus hllp, boolean useCompression) throws IOException {
         byte[] originalData = toByteArray2(hllp);
 
@@ -108,6 +110,15 @@ public class testSerialize {
         return compressData(originalData);
     }
 
+    /* Same as above, compressed with the given codec. The result starts with a header byte naming the codec (see SketchCodec): */
+    /* the JARs built before SketchCodec cannot read it. A null codec writes the legacy raw zlib stream of toByteArray2(hllp, true). */
+    public static byte[] toByteArray2(HyperLogLogPlus hllp, SketchCodec codec) throws IOException {
+        if (codec == null)
+            return toByteArray2(hllp, true);
+
+        return codec.encode(toByteArray2(hllp));
+    }
+
     /* This function uses HyperLogLog stream-lib Serialization to serialize the instance ==> Stream-Lib's own format. */
     public static HyperLogLogPlus fromByteArray2(byte[] dataIn) throws Exception{
         /*
@@ -124,15 +135,58 @@ public class testSerialize {
     }
 
     /* This function uses HyperLogLog stream-lib Serialization to serialize the instance ==> Stream-Lib's own format. */
+    /* useCompression: the data was written by toByteArray2(hllp, true) or toByteArray2(hllp, codec) (any codec, also the legacy raw Deflate). */
     public static HyperLogLogPlus fromByteArray2(byte[] dataIn, boolean useCompression) throws Exception{
-        byte[] data = null;
+        return fromByteArray2(dataIn, 0, dataIn.length, useCompression);
+    }
+
+    /* Same as above, but the serialized data is only a slice of dataIn (e.g. the backing array of a Hadoop BytesWritable). */
+    public static HyperLogLogPlus fromByteArray2(byte[] dataIn, int offset, int length, boolean useCompression) throws Exception{
+        ByteBuffer data = null;
+
+        if (useCompression == false)
+            data = ByteBuffer.wrap(dataIn, offset, length);
+        else
+            data = SketchCodec.decode(dataIn, offset, length);
+
+        return HyperLogLogPlus.Builder.build(new DataInputStream(new ByteArrayInputStream(data.array(), data.position(), data.remaining())));
+    }
+
+    /* Same as above, but spare (a synopsis of a previous group, or null) is cleared and reused when it has the same precisions and hash. */
+    public static HyperLogLogPlus fromByteArray2(byte[] dataIn, int offset, int length, boolean useCompression, HyperLogLogPlus spare) throws Exception{
+        if (spare == null)
+            return fromByteArray2(dataIn, offset, length, useCompression);
+
+        ByteBuffer data = null;
 
         if (useCompression == false)
-            data = dataIn;
+            data = ByteBuffer.wrap(dataIn, offset, length);
         else
-            data = decompressData(dataIn);
+            data = SketchCodec.decode(dataIn, offset, length);
+
+        if (spare.replaceWith(data.array(), data.position(), data.remaining()))
+            return spare;
+        return HyperLogLogPlus.Builder.build(new DataInputStream(new ByteArrayInputStream(data.array(), data.position(), data.remaining())));
+    }
 
-        return HyperLogLogPlus.Builder.build(data);
+    /* Merge a serialized (Stream-Lib's own format) HLL++ into target, without building an intermediate HyperLogLogPlus. */
+    public static void mergeByteArray2(HyperLogLogPlus target, byte[] dataIn, int offset, int length, boolean useCompression) throws Exception{
+        if (useCompression == false) {
+            target.addAll(dataIn, offset, length);
+            return;
+        }
+
+        ByteBuffer data = SketchCodec.decode(dataIn, offset, length);
+        target.addAll(data.array(), data.position(), data.remaining());
+    }
+
+    /* The cardinality of a serialized (Stream-Lib's own format) HLL++, the same as fromByteArray2(...).cardinality() without building it. */
+    public static long cardinalityByteArray2(byte[] dataIn, int offset, int length, boolean useCompression) throws Exception{
+        if (useCompression == false)
+            return HyperLogLogPlus.cardinality(dataIn, offset, length);
+
+        ByteBuffer data = SketchCodec.decode(dataIn, offset, length);
+        return HyperLogLogPlus.cardinality(data.array(), data.position(), data.remaining());
     }
 
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -244,10 +298,14 @@ public class testSerialize {
     }
 
     public static byte[] decompressData(byte[] compressedData) throws DataFormatException, IOException{
+        return decompressData(compressedData, 0, compressedData.length);
+    }
+
+    public static byte[] decompressData(byte[] compressedData, int offset, int length) throws DataFormatException, IOException{
         Inflater decompressor = new Inflater();
 
-        decompressor.setInput(compressedData);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(compressedData.length);
+        decompressor.setInput(compressedData, offset, length);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length);
 
         byte[] readBuffer = new byte[4096];
         int readCount = 0;
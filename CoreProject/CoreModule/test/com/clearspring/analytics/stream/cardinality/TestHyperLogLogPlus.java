@@ -0,0 +1,175 @@
+package com.clearspring.analytics.stream.cardinality;
+
+import com.clearspring.analytics.hash.HashStrategy;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestHyperLogLogPlus {
+
+    /// The k-NN bias lookup as it was with a TreeMap<distance, index>: the sum of the 6 nearest biases.
+    private static double treeMapBiasTotal(double estimate, double[] estimateVector, double[] biasVector) {
+        SortedMap<Double, Integer> distances = new TreeMap<Double, Integer>();
+        int index = 0;
+        for (double anEstimateVector : estimateVector) {
+            distances.put(Math.pow(estimate - anEstimateVector, 2), index++);
+        }
+        int[] nearest = new int[6];
+        int i = 0;
+        for (Integer nearestIndex : distances.values()) {
+            nearest[i++] = nearestIndex;
+            if (i >= 6) {
+                break;
+            }
+        }
+        double biasTotal = 0.0d;
+        for (int nearestNeighbor : nearest) {
+            biasTotal += biasVector[nearestNeighbor];
+        }
+        return biasTotal;
+    }
+
+    /// Every raw estimate, the values right next to them, the midpoints (ties), both ends and random values.
+    private static List<Double> probes(double[] estimateVector, Random random) {
+        List<Double> probes = new ArrayList<Double>();
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < estimateVector.length; i++) {
+            double e = estimateVector[i];
+            probes.add(e);
+            probes.add(Math.nextUp(e));
+            probes.add(Math.nextAfter(e, Double.NEGATIVE_INFINITY));
+            if (i > 0) {
+                probes.add((estimateVector[i - 1] + e) / 2);
+            }
+            min = Math.min(min, e);
+            max = Math.max(max, e);
+        }
+        probes.add(0.0d);
+        probes.add(min / 2);
+        probes.add(min - 1);
+        probes.add(max + 1);
+        probes.add(max * 2);
+        probes.add(max * 1000);
+        for (int i = 0; i < 2000; i++) {
+            probes.add(random.nextDouble() * max * 1.2);
+        }
+        return probes;
+    }
+
+    private static void assertSameBias(double expected, double actual, String message) {
+        assertEquals(message, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+    private static void assertLookupsMatchTreeMap(double[] estimateVector, double[] biasVector, String name, Random random) {
+        boolean sorted = true;
+        for (int i = 1; i < estimateVector.length; i++) {
+            sorted &= estimateVector[i - 1] < estimateVector[i];
+        }
+        for (double estimate : probes(estimateVector, random)) {
+            double expected = treeMapBiasTotal(estimate, estimateVector, biasVector);
+            String message = name + ", estimate " + estimate;
+            assertSameBias(expected, HyperLogLogPlus.sumNearestBiasScan(estimate, estimateVector, biasVector), message);
+            if (sorted) {
+                assertSameBias(expected, HyperLogLogPlus.sumNearestBiasSorted(estimate, estimateVector, biasVector), message);
+            }
+        }
+    }
+
+    @Test
+    public void testNearestBiasMatchesTreeMapForEveryPrecision() {
+        Random random = new Random(6);
+        int sortedTables = 0;
+        for (int p = 4; p <= 18; p++) {
+            HyperLogLogPlus.BiasTable table = HyperLogLogPlus.getBiasTable(p);
+            assertEquals("p=" + p, table.rawEstimates.length, table.biases.length);
+            if (table.sorted) {
+                sortedTables++;
+            }
+            assertLookupsMatchTreeMap(table.rawEstimates, table.biases, "p=" + p, random);
+        }
+        assertTrue("no table goes through the binary search", sortedTables > 0);
+    }
+
+    @Test
+    public void testNearestBiasTiesAndEdges() {
+        Random random = new Random(66);
+        // evenly spaced: every midpoint is exactly as far from both sides
+        assertLookupsMatchTreeMap(new double[]{1, 3, 5, 7, 9, 11, 13, 15, 17},
+                                  new double[]{0.5, -1.25, 2, 3.75, -4, 5.5, 6, -7.25, 8}, "evenly spaced", random);
+        // fewer than 6 raw estimates: the missing neighbors count as index 0
+        for (int length = 1; length < 6; length++) {
+            double[] estimates = new double[length];
+            double[] biases = new double[length];
+            for (int i = 0; i < length; i++) {
+                estimates[i] = 10 * (i + 1);
+                biases[i] = i - 1.5;
+            }
+            assertLookupsMatchTreeMap(estimates, biases, length + " estimates", random);
+        }
+        // not increasing, with duplicates: only the scan applies
+        assertLookupsMatchTreeMap(new double[]{5, 1, 3, 3, 9, 7, 7, 2, 11, 3},
+                                  new double[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, "duplicates", random);
+    }
+
+    /// The serialized version of an estimator: the int its bytes start with.
+    private static int version(byte[] bytes) {
+        return (bytes[0] << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+
+    /// The static cardinality(byte[], ...) against Builder.build(bytes).cardinality(), the bytes in the middle of a bigger array.
+    private static void assertSerializedCardinality(HyperLogLogPlus hllp, String message) throws IOException {
+        byte[] bytes = hllp.getBytes();
+        byte[] embedded = new byte[bytes.length + 10];
+        Arrays.fill(embedded, (byte) 0x5a);
+        System.arraycopy(bytes, 0, embedded, 7, bytes.length);
+
+        long expected = HyperLogLogPlus.Builder.build(bytes).cardinality();
+        assertEquals(message, hllp.cardinality(), expected);
+        assertEquals(message, expected, HyperLogLogPlus.cardinality(bytes, 0, bytes.length));
+        assertEquals(message + ", at an offset", expected, HyperLogLogPlus.cardinality(embedded, 7, bytes.length));
+        assertArrayEquals(message + ", bytes untouched", bytes, Arrays.copyOfRange(embedded, 7, 7 + bytes.length));
+    }
+
+    @Test
+    public void testSerializedCardinalityMatchesBuilder() throws IOException {
+        Random random = new Random(21);
+        int[][] precisions = {{4, 0}, {4, 25}, {10, 0}, {10, 20}, {14, 0}, {14, 25}, {16, 0}, {16, 25}, {18, 25}, {12, 32}};
+        int[] cardinalities = {0, 1, 100, 3000, 20000, 300000};
+        HashStrategy[] hashes = {HashStrategy.MURMUR2_64, HashStrategy.XXHASH_64, HashStrategy.MURMUR3_128};
+        int[] versionsSeen = new int[5];
+        int[] formatsSeen = new int[2];
+        for (int[] pp : precisions) {
+            for (int cardinality : cardinalities) {
+                for (HashStrategy hash : hashes) {
+                    HyperLogLogPlus hllp = new HyperLogLogPlus(pp[0], pp[1]);
+                    hllp.setHash(hash);
+                    for (int i = 0; i < cardinality; i++) {
+                        hllp.offer("v" + random.nextLong());
+                    }
+                    formatsSeen[hllp.getRegisterSet() == null ? 1 : 0]++;
+                    String message = "p=" + pp[0] + ", sp=" + pp[1] + ", " + cardinality + " values, " + hash;
+
+                    for (int cached = 0; cached < 2; cached++) {
+                        hllp.setCachedEstimate(cached == 1);
+                        versionsSeen[-version(hllp.getBytes())]++;
+                        assertSerializedCardinality(hllp, message + (cached == 1 ? ", cached" : ""));
+                    }
+                }
+            }
+        }
+        // NORMAL and SPARSE, VERSION (2), HASHED_VERSION (3) and CACHED_VERSION (4) all went through
+        assertTrue(formatsSeen[0] > 0 && formatsSeen[1] > 0);
+        assertTrue(versionsSeen[2] > 0 && versionsSeen[3] > 0 && versionsSeen[4] > 0);
+    }
+}
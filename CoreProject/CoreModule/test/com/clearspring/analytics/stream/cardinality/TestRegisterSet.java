@@ -0,0 +1,162 @@
+package com.clearspring.analytics.stream.cardinality;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestRegisterSet {
+
+    private static final int[] COUNTS = {1, 6, 7, 12, 16, 64, 1024, 4096, 65536};
+
+    /// The register-wise max as RegisterSet.merge() did it before the SWAR version: one register at a time.
+    private static int scalarMax(int thisWord, int thatWord) {
+        int word = 0;
+        for (int j = 0; j < RegisterSet.LOG2_BITS_PER_WORD; j++) {
+            int mask = 0x1f << (RegisterSet.REGISTER_SIZE * j);
+            int thisVal = thisWord & mask;
+            int thatVal = thatWord & mask;
+            word |= (thisVal < thatVal) ? thatVal : thisVal;
+        }
+        return word;
+    }
+
+    /// Register values biased towards what breaks a SWAR max: 0, 31 (saturated) and the same value on both sides.
+    private static int registerValue(Random random, int other) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return 0;
+            case 1:
+                return RegisterSet.MAX_REGISTER_VALUE;
+            case 2:
+                return other;
+            default:
+                return random.nextInt(RegisterSet.MAX_REGISTER_VALUE + 1);
+        }
+    }
+
+    /// Pairs of packed words, their 2 unused top bits set at random.
+    private static int[][] randomWordPairs(int size, Random random) {
+        int[][] pairs = new int[2][size];
+        for (int bucket = 0; bucket < size; bucket++) {
+            int a = random.nextInt(4) << 30;
+            int b = random.nextInt(4) << 30;
+            for (int j = 0; j < RegisterSet.LOG2_BITS_PER_WORD; j++) {
+                int thatVal = random.nextInt(RegisterSet.MAX_REGISTER_VALUE + 1);
+                int thisVal = registerValue(random, thatVal);
+                a |= thisVal << (RegisterSet.REGISTER_SIZE * j);
+                b |= thatVal << (RegisterSet.REGISTER_SIZE * j);
+            }
+            pairs[0][bucket] = a;
+            pairs[1][bucket] = b;
+        }
+        return pairs;
+    }
+
+    private static byte[] toBigEndian(int[] words, int offset) {
+        byte[] bytes = new byte[offset + 4 * words.length];
+        for (int i = 0; i < words.length; i++) {
+            bytes[offset + 4 * i] = (byte) (words[i] >>> 24);
+            bytes[offset + 4 * i + 1] = (byte) (words[i] >>> 16);
+            bytes[offset + 4 * i + 2] = (byte) (words[i] >>> 8);
+            bytes[offset + 4 * i + 3] = (byte) words[i];
+        }
+        return bytes;
+    }
+
+    private static RegisterSet registers(int count, int[] words, boolean bytePerRegister, boolean trackHistogram) {
+        RegisterSet registers = new RegisterSet(count, bytePerRegister);
+        registers.merge(new RegisterSet(count, words.clone()));
+        registers.setTrackHistogram(trackHistogram);
+        return registers;
+    }
+
+    private static void assertRegisters(int[] expectedWords, RegisterSet registers, String message) {
+        for (int position = 0; position < registers.count; position++) {
+            int bucket = position / RegisterSet.LOG2_BITS_PER_WORD;
+            int shift = RegisterSet.REGISTER_SIZE * (position - bucket * RegisterSet.LOG2_BITS_PER_WORD);
+            assertEquals(message + ", register " + position, (expectedWords[bucket] >>> shift) & 0x1f, registers.get(position));
+        }
+        int[] histogram = new int[RegisterSet.REGISTER_VALUES];
+        for (int position = 0; position < registers.count; position++) {
+            histogram[registers.get(position)]++;
+        }
+        assertArrayEquals(message + ", histogram", histogram, registers.histogram());
+    }
+
+    @Test
+    public void testPackedMergeMatchesScalarMax() {
+        Random random = new Random(7);
+        for (int count : COUNTS) {
+            for (int round = 0; round < 20; round++) {
+                int size = RegisterSet.getSizeForCount(count);
+                int[][] pairs = randomWordPairs(size, random);
+                int[] expected = new int[size];
+                for (int bucket = 0; bucket < size; bucket++) {
+                    expected[bucket] = scalarMax(pairs[0][bucket], pairs[1][bucket]);
+                }
+
+                RegisterSet registers = new RegisterSet(count, pairs[0].clone());
+                registers.merge(new RegisterSet(count, pairs[1].clone()));
+                assertArrayEquals("count " + count, expected, registers.bits());
+
+                registers = new RegisterSet(count, pairs[0].clone());
+                registers.merge(toBigEndian(pairs[1], 3), 3);
+                assertArrayEquals("count " + count + ", serialized", expected, registers.bits());
+            }
+        }
+    }
+
+    @Test
+    public void testSaturatedRegistersAndGuardBits() {
+        int all31 = 0;
+        int alternate = 0;
+        for (int j = 0; j < RegisterSet.LOG2_BITS_PER_WORD; j++) {
+            all31 |= RegisterSet.MAX_REGISTER_VALUE << (RegisterSet.REGISTER_SIZE * j);
+            alternate |= (j % 2 == 0 ? RegisterSet.MAX_REGISTER_VALUE : 1) << (RegisterSet.REGISTER_SIZE * j);
+        }
+        // the guard bits of the even lanes are the lowest bits of the odd registers
+        int guardBits = (1 << 5) | (1 << 15) | (1 << 25);
+        int[] words = {0, all31, alternate, ~alternate, guardBits, ~guardBits, 0xC0000000, 0xFFFFFFFF, 0x7FFFFFFF, 0x55555555};
+        for (int a : words) {
+            for (int b : words) {
+                RegisterSet registers = new RegisterSet(RegisterSet.LOG2_BITS_PER_WORD, new int[]{a});
+                registers.merge(new RegisterSet(RegisterSet.LOG2_BITS_PER_WORD, new int[]{b}));
+                assertEquals(Integer.toHexString(a) + " max " + Integer.toHexString(b), scalarMax(a, b), registers.bits()[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testMergeAcrossLayoutsWithTrackedHistogram() {
+        Random random = new Random(8);
+        for (int count : COUNTS) {
+            for (int round = 0; round < 5; round++) {
+                int size = RegisterSet.getSizeForCount(count);
+                int[][] pairs = randomWordPairs(size, random);
+                int[] expected = new int[size];
+                for (int bucket = 0; bucket < size; bucket++) {
+                    expected[bucket] = scalarMax(pairs[0][bucket], pairs[1][bucket]);
+                }
+                for (int layouts = 0; layouts < 4; layouts++) {
+                    boolean thisBytes = (layouts & 1) != 0;
+                    boolean thatBytes = (layouts & 2) != 0;
+                    for (int track = 0; track < 2; track++) {
+                        String message = "count " + count + ", this " + (thisBytes ? "bytes" : "packed")
+                                         + ", that " + (thatBytes ? "bytes" : "packed") + (track == 1 ? ", tracked" : "");
+
+                        RegisterSet registers = registers(count, pairs[0], thisBytes, track == 1);
+                        registers.merge(registers(count, pairs[1], thatBytes, false));
+                        assertRegisters(expected, registers, message);
+
+                        registers = registers(count, pairs[0], thisBytes, track == 1);
+                        registers.merge(toBigEndian(pairs[1], 0), 0);
+                        assertRegisters(expected, registers, message + ", serialized");
+                    }
+                }
+            }
+        }
+    }
+}
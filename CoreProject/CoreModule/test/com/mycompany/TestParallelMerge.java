@@ -0,0 +1,119 @@
+package com.mycompany;
+
+import com.clearspring.analytics.hash.HashStrategy;
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestParallelMerge {
+
+    private static HyperLogLogPlus sketch(int p, int sp, int cardinality, Random random) {
+        HyperLogLogPlus hllp = new HyperLogLogPlus(p, sp);
+        for (int i = 0; i < cardinality; i++) {
+            hllp.offerHashed(random.nextLong());
+        }
+        return hllp;
+    }
+
+    /// What ParallelMerge must give: a copy of the first sketch, the others added one by one.
+    private static byte[] sequentialMerge(List<HyperLogLogPlus> sketches) throws Exception {
+        HyperLogLogPlus result = (HyperLogLogPlus) sketches.get(0).merge();
+        for (int i = 1; i < sketches.size(); i++) {
+            result.addAll(sketches.get(i));
+        }
+        return result.getBytes();
+    }
+
+    @Test
+    public void testRegisterRangesMatchSequentialMerge() throws Exception {
+        Random random = new Random(10);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int[] precisions = {4, 10, 14, 16, 18};
+            int[] counts = {1, 2, 3, 9, 20};
+            for (int p : precisions) {
+                for (int count : counts) {
+                    List<HyperLogLogPlus> sketches = new ArrayList<HyperLogLogPlus>();
+                    for (int i = 0; i < count; i++) {
+                        HyperLogLogPlus hllp = sketch(p, i % 2 == 0 ? 0 : 25, 5 * (1 << p), random);
+                        if (i % 3 == 1) {
+                            hllp.setBytePerRegister(true);
+                        }
+                        if (i % 4 == 2) {
+                            hllp.setIncrementalCardinality(true);
+                        }
+                        sketches.add(hllp);
+                    }
+                    sketches.add(sketches.get(0));      // the same input twice
+                    for (HyperLogLogPlus hllp : sketches) {
+                        assertFalse(hllp.isSparse());
+                    }
+
+                    byte[] expected = sequentialMerge(sketches);
+                    HyperLogLogPlus merged = ParallelMerge.merge(sketches, pool);
+                    assertArrayEquals("p=" + p + ", " + count + " sketches", expected, merged.getBytes());
+                    assertTrue(merged != sketches.get(0));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testTreeReductionMatchesSequentialMerge() throws Exception {
+        Random random = new Random(11);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<HyperLogLogPlus> sketches = new ArrayList<HyperLogLogPlus>();
+            List<byte[]> serialized = new ArrayList<byte[]>();
+            for (int i = 0; i < 40; i++) {
+                // mostly sparse, a few normal ones
+                HyperLogLogPlus hllp = sketch(14, 25, i % 10 == 0 ? 100000 : 50 + random.nextInt(2000), random);
+                sketches.add(hllp);
+                serialized.add(testSerialize.toByteArray2(hllp, SketchCodec.LZF));
+            }
+            byte[] expected = sequentialMerge(sketches);
+            assertArrayEquals(expected, ParallelMerge.merge(sketches, pool).getBytes());
+            assertArrayEquals(expected, ParallelMerge.mergeSerialized(serialized, true, pool).getBytes());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testIncompatibleSketchesAreRefused() throws Exception {
+        Random random = new Random(12);
+        HyperLogLogPlus xxhash = sketch(14, 0, 100000, random);
+        xxhash.setHash(HashStrategy.XXHASH_64);
+        List<List<HyperLogLogPlus>> lists = Arrays.asList(
+                Arrays.asList(sketch(14, 0, 100000, random), sketch(12, 0, 100000, random)),
+                Arrays.asList(sketch(14, 0, 100000, random), xxhash));
+        for (List<HyperLogLogPlus> sketches : lists) {
+            try {
+                ParallelMerge.merge(sketches);
+                fail("merged incompatible sketches");
+            } catch (CardinalityMergeException expected) {
+                // thrown on the calling thread, before any register is merged
+            }
+        }
+        try {
+            ParallelMerge.merge(new ArrayList<HyperLogLogPlus>());
+            fail("merged nothing");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("Nothing to merge", expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.mycompany;
+
+import com.clearspring.analytics.hash.HashStrategy;
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestSketchCodec {
+
+    private static byte[] decoded(byte[] encoded) throws Exception {
+        ByteBuffer data = SketchCodec.decode(encoded, 0, encoded.length);
+        return Arrays.copyOfRange(data.array(), data.position(), data.position() + data.remaining());
+    }
+
+    /// cardinalityByteArray2() through every codec against Builder.build(bytes).cardinality(), for every serialized form.
+    @Test
+    public void testCardinalityThroughEveryCodec() throws Exception {
+        Random random = new Random(5);
+        int[][] precisions = {{4, 0}, {10, 20}, {14, 0}, {14, 25}, {16, 25}};
+        int[] cardinalities = {0, 1, 300, 5000, 100000};
+        HashStrategy[] hashes = {HashStrategy.MURMUR2_64, HashStrategy.XXHASH_64};
+        for (int[] pp : precisions) {
+            for (int cardinality : cardinalities) {
+                for (HashStrategy hash : hashes) {
+                    HyperLogLogPlus hllp = new HyperLogLogPlus(pp[0], pp[1]);
+                    hllp.setHash(hash);
+                    for (int i = 0; i < cardinality; i++) {
+                        hllp.offerHashed(random.nextLong());
+                    }
+                    for (int cached = 0; cached < 2; cached++) {
+                        hllp.setCachedEstimate(cached == 1);
+                        byte[] bytes = hllp.getBytes();
+                        long expected = HyperLogLogPlus.Builder.build(bytes).cardinality();
+                        String message = "p=" + pp[0] + ", sp=" + pp[1] + ", " + cardinality + " values, " + hash
+                                         + (cached == 1 ? ", cached" : "");
+
+                        for (SketchCodec codec : SketchCodec.values()) {
+                            byte[] encoded = testSerialize.toByteArray2(hllp, codec);
+                            assertArrayEquals(message + ", " + codec, bytes, decoded(encoded));
+                            assertEquals(message + ", " + codec, expected,
+                                         testSerialize.cardinalityByteArray2(encoded, 0, encoded.length, true));
+                        }
+
+                        // the legacy raw zlib stream, without codec header: what the former JARs read
+                        byte[] compressed = testSerialize.toByteArray2(hllp, true);
+                        assertEquals(message + ", compressed", 0x78, compressed[0] & 0xff);
+                        assertArrayEquals(message + ", compressed", bytes, testSerialize.decompressData(compressed));
+                        assertArrayEquals(message + ", compressed", compressed, testSerialize.toByteArray2(hllp, (SketchCodec) null));
+                        assertArrayEquals(message + ", compressed", bytes, decoded(compressed));
+                        assertEquals(message + ", compressed", expected,
+                                     testSerialize.cardinalityByteArray2(compressed, 0, compressed.length, true));
+                        assertEquals(message + ", uncompressed", expected,
+                                     testSerialize.cardinalityByteArray2(bytes, 0, bytes.length, false));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -6,22 +6,25 @@ import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
 import org.apache.hadoop.hive.serde2.io.ByteWritable;
 import org.apache.hadoop.hive.serde2.lazy.LazyByte;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.ByteObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
 
 import java.util.ArrayList;
 import java.util.Locale;
 
-/* HOW TO USE IN HIVE: Supposed that "hll" field is of Byte Array type.
+/* HOW TO USE IN HIVE: Supposed that "hll" field is of Byte Array type (array<tinyint>) or of BINARY type.
 -- Calculate the cardinality from the HLL synopses.
 add jar hdfs://[some address where Hive can find...]/HyperLogLogMergeAndCount.jar;
 
@@ -31,6 +34,8 @@ SELECT HyperLogLogMergeAndCount(t.hll)
 FROM hllsynopsis t
 WHERE t.dt IN ( '20141201', '20141202', '20141203', '20141204', 
                      '20141205', '20141206', '20141207')
+
+-- The precision is taken from the synopses themselves; they must all have the same p.
 */
 
 public class HyperLogLogMergeAndCount extends AbstractGenericUDAFResolver {
@@ -40,9 +45,15 @@ public class HyperLogLogMergeAndCount extends AbstractGenericUDAFResolver {
             throw new UDFArgumentTypeException(0, "Specify exactly one argument.");
         }
 
+        // BINARY synopses (see HyperLogLogSynopsisBinary) are accepted as they are.
+        if (parameters[0].getCategory() == ObjectInspector.Category.PRIMITIVE
+                && ((PrimitiveTypeInfo)parameters[0]).getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+            return new HyperLogLogMergeAndCountEvaluator();
+        }
+
         // Check if the only input is of array
         if (parameters[0].getCategory() != ObjectInspector.Category.LIST) {
-            throw new UDFArgumentTypeException(0, "Only array type argument is accepted.");
+            throw new UDFArgumentTypeException(0, "Only array<tinyint> or binary type argument is accepted.");
         }
 
         // Check if the element of the array is of tiny int (byte)
@@ -62,6 +73,9 @@ public class HyperLogLogMergeAndCount extends AbstractGenericUDAFResolver {
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     public static class HyperLogLogMergeAndCountEvaluator extends GenericUDAFEvaluator {
         private ListObjectInspector inputOI;   // this should be array of bytes
+        private BinaryObjectInspector binaryInputOI;    // or binary (always the case for partial aggregations)
+
+        private transient BytesWritable partialResult;  // reused for every terminatePartial() of this evaluator
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
@@ -70,7 +84,10 @@ public class HyperLogLogMergeAndCount extends AbstractGenericUDAFResolver {
 
             /// INPUT!!!
             // init input object inspectors
-            inputOI = (ListObjectInspector) parameters[0];
+            if (parameters[0] instanceof BinaryObjectInspector)
+                binaryInputOI = (BinaryObjectInspector) parameters[0];
+            else
+                inputOI = (ListObjectInspector) parameters[0];
 
             /// OUTPUT!!!
             // initialize output object inspectors
@@ -82,35 +99,40 @@ public class HyperLogLogMergeAndCount extends AbstractGenericUDAFResolver {
                 return ObjectInspectorFactory.getReflectionObjectInspector(Integer.class,
                         ObjectInspectorFactory.ObjectInspectorOptions.JAVA);
             } else { // (m == Mode.PARTIAL1 || m == Mode.PARTIAL2)
-                /// return byte array
-                return ObjectInspectorFactory.getStandardListObjectInspector(
-                        PrimitiveObjectInspectorFactory.writableByteObjectInspector);
+                /// return binary: the partial aggregations only live in the shuffle, one BytesWritable is enough.
+                partialResult = new BytesWritable();
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
             }
         }
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
             HyperLogLogBuffer hllbuff = (HyperLogLogBuffer)agg;
-            ArrayList<ByteWritable> result = new ArrayList<ByteWritable>();
+
+            /// Nothing was merged: there is no precision to build a synopsis with, the final merge() skips nulls.
+            if (hllbuff.hllp == null)
+                return null;
 
             try{
                 //byte[] arrBytes = testSerialize.toByteArray(hllbuff.hllp);
-                byte[] arrBytes = testSerialize.toByteArray2(hllbuff.hllp, true);
-                for(int i = 0; i < arrBytes.length; i++){
-                    result.add(new ByteWritable(arrBytes[i]));
-                }
+                /// Partial results only cross the shuffle: cheap to (de)compress.
+                byte[] arrBytes = testSerialize.toByteArray2(hllbuff.hllp, SketchCodec.LZF);
+                partialResult.set(arrBytes, 0, arrBytes.length);
             }
             catch (Exception ex){
                 throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
             }
 
-            return result;
+            return partialResult;
         }
 
         @Override
         public Object terminate(AggregationBuffer agg) throws HiveException {
             HyperLogLogBuffer hllbuff = (HyperLogLogBuffer)agg;
 
+            if (hllbuff.hllp == null)
+                return 0;
+
             /// return the estimated cardinality!
             return (int)hllbuff.hllp.cardinality();
         }
@@ -122,8 +144,34 @@ public class HyperLogLogMergeAndCount extends AbstractGenericUDAFResolver {
 
         @Override
         public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial == null)
+                return;
+
             HyperLogLogBuffer hllBuff = (HyperLogLogBuffer)agg;
+            try{
+                /// Fold the serialized registers of another HyperLogLog instance straight into ours.
+                /// The first synopsis merged into an empty buffer gives the precision.
+                if (binaryInputOI != null) {
+                    BytesWritable bw = binaryInputOI.getPrimitiveWritableObject(partial);
+                    if (hllBuff.hllp == null)
+                        hllBuff.hllp = testSerialize.fromByteArray2(bw.getBytes(), 0, bw.getLength(), true, hllBuff.takeSpare());
+                    else
+                        testSerialize.mergeByteArray2(hllBuff.hllp, bw.getBytes(), 0, bw.getLength(), true);
+                } else {
+                    byte[] partialHllArr = toByteArray(partial);
+                    if (hllBuff.hllp == null)
+                        hllBuff.hllp = testSerialize.fromByteArray2(partialHllArr, 0, partialHllArr.length, true, hllBuff.takeSpare());
+                    else
+                        testSerialize.mergeByteArray2(hllBuff.hllp, partialHllArr, 0, partialHllArr.length, true);
+                }
+            }
+            catch (Exception ex){
+                throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
+            }
+        }
 
+        /// Copy an array<tinyint> synopsis into a plain byte array.
+        private byte[] toByteArray(Object partial) {
             //ArrayList<ByteWritable> partialHllData = (ArrayList<ByteWritable>)inputOI.getList(partial);
             ArrayList<Object> partialHllData = (ArrayList<Object>)inputOI.getList(partial);
             ByteObjectInspector objIns = (ByteObjectInspector)inputOI.getListElementObjectInspector();
@@ -145,23 +193,7 @@ public class HyperLogLogMergeAndCount extends AbstractGenericUDAFResolver {
                 partialHllArr[i] = bwt.get();
             }
 
-            HyperLogLogPlus partialHll = null;
-
-            try{
-                //partialHll = testSerialize.fromByteArray(partialHllArr);
-                partialHll = testSerialize.fromByteArray2(partialHllArr, true);
-            }
-            catch(Exception ex){
-                throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
-            }
-
-            try{
-                /// "Digest" the bitfields of another HyperLogLog instance.
-                hllBuff.hllp.addAll(partialHll);
-            }
-            catch (Exception ex){
-                throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
-            }
+            return partialHllArr;
         }
 
         @Override
@@ -174,14 +206,35 @@ public class HyperLogLogMergeAndCount extends AbstractGenericUDAFResolver {
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
             HyperLogLogBuffer result = (HyperLogLogBuffer)agg;
-            result.hllp = new HyperLogLogPlus(16);  // Use HLL 16 bits!
+            result.recycle();       // created from the first synopsis merged, with its precision (reusing the last one if it can)
         }
 
         ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
         // Aggregation buffer definition and manipulation methods
         @AggregationType(estimable = true)
         static class HyperLogLogBuffer extends AbstractAggregationBuffer {
-            HyperLogLogPlus hllp;   // the HyperLogLog object
+            HyperLogLogPlus hllp;   // the HyperLogLog object (null until the first merge)
+            HyperLogLogPlus spare;  // the synopsis of a previous group, reused by the first merge when it is of the same kind
+
+            void recycle() {
+                if (hllp != null)
+                    spare = hllp;
+                hllp = null;
+            }
+
+            HyperLogLogPlus takeSpare() {
+                HyperLogLogPlus result = spare;
+                spare = null;
+                return result;
+            }
+
+            /// What the map-side hash aggregation counts for this group: a sparse synopsis takes a few hundred bytes,
+            /// a normal one the whole register array.
+            @Override
+            public int estimate() {
+                return JavaDataModel.get().object() + 2 * JavaDataModel.get().ref()
+                        + (hllp == null ? 0 : hllp.memorySize()) + (spare == null ? 0 : spare.memorySize());
+            }
         }
     }
 }
@@ -0,0 +1,65 @@
+package com.mycompany;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.Locale;
+
+/* HOW TO USE IN HIVE: Supposed that "hll" field is of Byte Array type (array<tinyint>) or of BINARY type.
+-- The cardinality of each stored synopsis, row by row: no GROUP BY, no reduce phase.
+add jar hdfs://[some address where Hive can find...]/HyperLogLogScalarFunctions.jar;
+
+create temporary function hll_cardinality as 'com.mycompany.HyperLogLogCardinality';
+
+SELECT t.dt, hll_cardinality(t.hll)
+FROM hllsynopsis t
+WHERE t.dt >= '20141201'
+
+-- NULL for a NULL synopsis.
+*/
+
+@Description(name = "hll_cardinality", value = "_FUNC_(synopsis) - the estimated number of distinct values of a synopsis")
+public class HyperLogLogCardinality extends HyperLogLogScalarFunction {
+
+    private transient ObjectInspector synopsisOI;
+    private transient LongWritable result;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 1) {
+            throw new UDFArgumentLengthException("hll_cardinality takes exactly one argument.");
+        }
+        checkSynopsis(arguments[0], 0);
+        synopsisOI = arguments[0];
+        result = new LongWritable();
+        return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        Object synopsis = arguments[0].get();
+        if (synopsis == null)
+            return null;
+
+        // straight from the bytes: no HyperLogLogPlus is built
+        BytesWritable bw = getBytes(synopsis, synopsisOI);
+        try {
+            result.set(testSerialize.cardinalityByteArray2(bw.getBytes(), 0, bw.getLength(), true));
+        }
+        catch (Exception ex) {
+            throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
+        }
+        return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return getDisplayString("hll_cardinality", children);
+    }
+}
@@ -0,0 +1,134 @@
+package com.mycompany;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.ByteObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.util.Locale;
+
+/*
+What the scalar functions over stored synopses share: the synopses are BINARY (HyperLogLogSynopsisBinary)
+or array<tinyint> (HyperLogLogSynopsis), compressed or not (see SketchCodec).
+
+The synopsis of a row is kept for the next row: when the next one has the same precisions and hash (the usual case),
+its arrays are reused instead of allocating a new HyperLogLogPlus per row.
+ */
+abstract class HyperLogLogScalarFunction extends GenericUDF {
+
+    /// The unions are returned like the final result of HyperLogLogSynopsisBinary (null: the legacy raw zlib, see FINAL_CODEC).
+    static final SketchCodec RESULT_CODEC = SketchCodec.DEFLATE;
+    static final boolean RESULT_CACHED_ESTIMATE = true;
+
+    private transient HyperLogLogPlus hllp;     // the synopsis of the current row (or of a previous one)
+    private transient boolean empty = true;     // nothing added for the current row yet
+    private transient BytesWritable result;     // reused for every row
+    private transient BytesWritable listBytes;  // array<tinyint> synopses, reused for every row
+
+    /// Synopses are BINARY or array<tinyint>
+    static void checkSynopsis(ObjectInspector oi, int i) throws UDFArgumentTypeException {
+        if (oi.getCategory() == ObjectInspector.Category.PRIMITIVE
+                && ((PrimitiveObjectInspector) oi).getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+            return;
+        }
+        if (oi.getCategory() == ObjectInspector.Category.LIST) {
+            ObjectInspector ele = ((ListObjectInspector) oi).getListElementObjectInspector();
+            if (ele.getCategory() == ObjectInspector.Category.PRIMITIVE
+                    && ((PrimitiveObjectInspector) ele).getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.BYTE) {
+                return;
+            }
+        }
+        throw new UDFArgumentTypeException(i, "Only array<tinyint> or binary type synopsis is accepted.");
+    }
+
+    /// Starts a new row: the next synopsis added replaces the content of the previous row.
+    protected void startRow() {
+        empty = true;
+    }
+
+    /// Adds (unions) a synopsis to the current row. Nulls are skipped.
+    protected void add(Object synopsis, ObjectInspector oi) throws HiveException {
+        if (synopsis == null)
+            return;
+
+        BytesWritable bw = getBytes(synopsis, oi);
+        byte[] bytes = bw.getBytes();
+        int length = bw.getLength();
+
+        try {
+            if (empty) {
+                hllp = testSerialize.fromByteArray2(bytes, 0, length, true, hllp);
+                empty = false;
+            } else {
+                testSerialize.mergeByteArray2(hllp, bytes, 0, length, true);
+            }
+        }
+        catch (Exception ex) {
+            throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
+        }
+    }
+
+    /// The union of the synopses added to the current row, null when there was none.
+    protected HyperLogLogPlus getSynopsis() {
+        return empty ? null : hllp;
+    }
+
+    /// The union of the current row, serialized as BINARY (null when there was no synopsis).
+    protected BytesWritable serializeSynopsis() throws HiveException {
+        if (empty)
+            return null;
+
+        byte[] arrBytes = null;
+        try {
+            hllp.setCachedEstimate(RESULT_CACHED_ESTIMATE);
+            arrBytes = testSerialize.toByteArray2(hllp, RESULT_CODEC);
+        }
+        catch (Exception ex) {
+            throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
+        }
+
+        if (result == null)
+            result = new BytesWritable();
+        result.set(arrBytes, 0, arrBytes.length);
+        return result;
+    }
+
+    /// The serialized synopsis: the BINARY value itself, or an array<tinyint> copied into a reused buffer.
+    protected BytesWritable getBytes(Object synopsis, ObjectInspector oi) {
+        if (oi instanceof BinaryObjectInspector)
+            return ((BinaryObjectInspector) oi).getPrimitiveWritableObject(synopsis);
+
+        byte[] arr = toByteArray((ListObjectInspector) oi, synopsis);
+        if (listBytes == null)
+            listBytes = new BytesWritable();
+        listBytes.set(arr, 0, arr.length);
+        return listBytes;
+    }
+
+    /// Copy an array<tinyint> synopsis into a plain byte array (the elements can be lazy, the inspector knows).
+    private static byte[] toByteArray(ListObjectInspector loi, Object synopsis) {
+        ByteObjectInspector objIns = (ByteObjectInspector) loi.getListElementObjectInspector();
+        int length = loi.getListLength(synopsis);
+        byte[] arr = new byte[length];
+        for (int i = 0; i < length; i++) {
+            arr[i] = objIns.get(loi.getListElement(synopsis, i));
+        }
+        return arr;
+    }
+
+    protected static String getDisplayString(String name, String[] children) {
+        StringBuilder sb = new StringBuilder(name).append('(');
+        for (int i = 0; i < children.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(children[i]);
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,56 @@
+package com.mycompany;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+/* HOW TO USE IN HIVE: Supposed that "hll" fields are of Byte Array type (array<tinyint>) or of BINARY type.
+-- The union of the synopses of the same row: this week against last week per customer, without a reduce phase.
+add jar hdfs://[some address where Hive can find...]/HyperLogLogScalarFunctions.jar;
+
+create temporary function hll_union as 'com.mycompany.HyperLogLogUnion';
+create temporary function hll_cardinality as 'com.mycompany.HyperLogLogCardinality';
+
+SELECT c.customer,
+       hll_cardinality(hll_union(c.hll_this_week, c.hll_last_week)) AS both_weeks,
+       hll_cardinality(c.hll_this_week) AS this_week
+FROM customerweeks c
+
+-- The result is a BINARY synopsis (same as HyperLogLogSynopsisBinary). NULL synopses are skipped; NULL if all are.
+-- The synopses must have the same p and hash.
+*/
+
+@Description(name = "hll_union", value = "_FUNC_(synopsis1, synopsis2, ...) - the union of the synopses, as a BINARY synopsis")
+public class HyperLogLogUnion extends HyperLogLogScalarFunction {
+
+    private transient ObjectInspector[] synopsisOIs;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length < 1) {
+            throw new UDFArgumentLengthException("hll_union takes at least one argument.");
+        }
+        for (int i = 0; i < arguments.length; i++) {
+            checkSynopsis(arguments[i], i);
+        }
+        synopsisOIs = arguments;
+        return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        startRow();
+        for (int i = 0; i < arguments.length; i++) {
+            add(arguments[i].get(), synopsisOIs[i]);
+        }
+        return serializeSynopsis();
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return getDisplayString("hll_union", children);
+    }
+}
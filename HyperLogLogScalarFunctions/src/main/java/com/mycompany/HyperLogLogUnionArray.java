@@ -0,0 +1,63 @@
+package com.mycompany;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+/* HOW TO USE IN HIVE: Supposed that "hlls" field is an array of synopses (array<binary> or array<array<tinyint>>).
+-- The union of all the synopses of the array, row by row.
+add jar hdfs://[some address where Hive can find...]/HyperLogLogScalarFunctions.jar;
+
+create temporary function hll_union_array as 'com.mycompany.HyperLogLogUnionArray';
+create temporary function hll_cardinality as 'com.mycompany.HyperLogLogCardinality';
+
+SELECT c.customer, hll_cardinality(hll_union_array(c.daily_hlls))
+FROM customermonths c
+
+-- The result is a BINARY synopsis (same as HyperLogLogSynopsisBinary). NULL synopses are skipped;
+-- NULL for a NULL or empty array, or when all the synopses are NULL.
+*/
+
+@Description(name = "hll_union_array", value = "_FUNC_(array<synopsis>) - the union of the synopses of the array, as a BINARY synopsis")
+public class HyperLogLogUnionArray extends HyperLogLogScalarFunction {
+
+    private transient ListObjectInspector arrayOI;
+    private transient ObjectInspector synopsisOI;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 1) {
+            throw new UDFArgumentLengthException("hll_union_array takes exactly one argument.");
+        }
+        if (arguments[0].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(0, "Only an array of synopses is accepted.");
+        }
+        arrayOI = (ListObjectInspector) arguments[0];
+        synopsisOI = arrayOI.getListElementObjectInspector();
+        checkSynopsis(synopsisOI, 0);
+        return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        startRow();
+        Object array = arguments[0].get();
+        if (array != null) {
+            int length = arrayOI.getListLength(array);
+            for (int i = 0; i < length; i++) {
+                add(arrayOI.getListElement(array, i), synopsisOI);
+            }
+        }
+        return serializeSynopsis();
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return getDisplayString("hll_union_array", children);
+    }
+}
@@ -1,26 +1,42 @@
 package com.mycompany;
 
+import com.clearspring.analytics.hash.HashStrategy;
 import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
 import org.apache.hadoop.hive.serde2.io.ByteWritable;
+import org.apache.hadoop.hive.serde2.io.HiveCharWritable;
+import org.apache.hadoop.hive.serde2.io.HiveVarcharWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.ByteObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.HiveCharObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.HiveDecimalObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.HiveVarcharObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Locale;
 
 /* HOW TO USE IN HIVE: Supposed that "ip" field is of String type.
+(TINYINT, SMALLINT, INT, BIGINT, DECIMAL, VARCHAR, CHAR and BINARY columns are accepted as well.)
 
 add jar hdfs://[some address where Hive can find...]/HyperLogLogSynopsis.jar;
 
@@ -33,29 +49,188 @@ WHERE  t.dt IN ('20141201', '20141202', '20141203', '20141204',
                      '20141205', '20141206', '20141207')
 GROUP  BY t.dt
 ORDER  BY t.dt ASC
+
+-- Optionally, the precision p (4..18, default 16) and the sparse precision sp (0 = no sparse mode, or p..25; default 0)
+-- can be given as constants. E.g. a small (about 3 KB) synopsis for a low-cardinality dimension:
+SELECT t.dt, HyperLogLogSynopsis(t.ip, 12)
+...
+-- or a synopsis which stays small (sparse) as long as only a few distinct IPs were seen
+-- (it switches to the normal representation once that one is smaller):
+SELECT t.dt, HyperLogLogSynopsis(t.ip, 14, 25)
+...
+
+-- Numbers, decimals and binaries are hashed from their value, which is not the hash of their text:
+-- such a synopsis does not mix with one made from the same values as STRING.
+-- The 4th argument 'string' hashes them as their text instead (same as CAST(t.userid AS STRING), but faster):
+SELECT t.dt, HyperLogLogSynopsis(t.userid, 16, 0, 'string')
+...
+
+-- The 5th argument chooses the hash function: 'murmur2_64' (default), 'xxhash_64' (faster) or 'murmur3_128'.
+-- It is recorded in the synopsis: synopses made with different hashes refuse to merge.
+SELECT t.dt, HyperLogLogSynopsis(t.ip, 16, 0, 'native', 'xxhash_64')
+...
 */
 
 public class HyperLogLogSynopsis extends AbstractGenericUDAFResolver {
 
+    static final int DEFAULT_P = 16;    // Use HLL 16 bits when nothing is specified!
+    static final int DEFAULT_SP = 0;    // no sparse representation when nothing is specified
+    static final int MIN_P = 4;
+    static final int MAX_P = 18;        // HyperLogLogPlus has bias correction data up to 18
+    static final int MAX_SP = 25;       // the sparse encoding needs sp + 7 bits in an int
+
+    /// The 4th argument: how the values which are not strings are hashed.
+    static final String HASH_NATIVE = "native";     // from their value or bytes (default)
+    static final String HASH_STRING = "string";     // as their text, like a string (compatible with CAST(... AS STRING))
+
+    /// The 5th argument: the hash function, by the name of its HashStrategy.
+    static final HashStrategy DEFAULT_HASH = HashStrategy.MURMUR2_64;
+
+    /// With sp > 0, a synopsis stays sparse as long as it is not bigger than the normal one once serialized.
+    static final double SPARSE_SIZE_RATIO = 1.0;
+
+    /// With sp > 0, the sparse synopses are kept delta + varint encoded in memory: more groups fit in the
+    /// map-side hash aggregation before it flushes.
+    static final boolean COMPRESSED_SPARSE_SET = true;
+
+    /// The buffers fed by iterate() keep one register per byte: offer() is the hot path of the map tasks.
+    /// The buffers fed by merge() stay packed: merging packed words is faster.
+    static final boolean BYTE_PER_REGISTER = true;
+
+    /// Partial results only cross the shuffle: cheap to (de)compress. The final result is stored: compress it well.
+    /// A codec header cannot be read by older builds of these JARs: set FINAL_CODEC to null to keep writing raw zlib.
+    static final SketchCodec PARTIAL_CODEC = SketchCodec.LZF;
+    static final SketchCodec FINAL_CODEC = SketchCodec.DEFLATE;
+
+    /// The final result also carries its estimate (see HyperLogLogPlus.setCachedEstimate): counting a stored
+    /// synopsis (hll_cardinality) then reads it from the header instead of going through the registers.
+    static final boolean FINAL_CACHED_ESTIMATE = true;
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        GenericUDAFEvaluator evaluator = super.getEvaluator(info);  // checks the types, see below
+
+        // The precisions must be known when the query is compiled: they decide the size of every synopsis.
+        ObjectInspector[] parameters = info.getParameterObjectInspectors();
+        int p = DEFAULT_P;
+        if (parameters.length > 1) {
+            p = getConstantInt(parameters, 1);
+            if (p < MIN_P || p > MAX_P) {
+                throw new UDFArgumentTypeException(1, String.format(Locale.ENGLISH, "p must be between %d and %d.", MIN_P, MAX_P));
+            }
+        }
+        if (parameters.length > 2) {
+            int sp = getConstantInt(parameters, 2);
+            if (sp != 0 && (sp < p || sp > MAX_SP)) {
+                throw new UDFArgumentTypeException(2, String.format(Locale.ENGLISH, "sp must be 0 or between p and %d.", MAX_SP));
+            }
+        }
+        if (parameters.length > 3) {
+            getHashAsString(parameters, 3);
+        }
+        if (parameters.length > 4) {
+            getHashStrategy(parameters, 4);
+        }
+
+        return evaluator;
+    }
+
+    static int getConstantInt(ObjectInspector[] parameters, int i) throws UDFArgumentTypeException {
+        if (!(parameters[i] instanceof ConstantObjectInspector)) {
+            throw new UDFArgumentTypeException(i, "The precision must be a constant.");
+        }
+        Object value = ((ConstantObjectInspector) parameters[i]).getWritableConstantValue();
+        if (value == null) {
+            throw new UDFArgumentTypeException(i, "The precision must not be null.");
+        }
+        return PrimitiveObjectInspectorUtils.getInt(value, (PrimitiveObjectInspector) parameters[i]);
+    }
+
+    /// true for 'string', false for 'native'
+    static boolean getHashAsString(ObjectInspector[] parameters, int i) throws UDFArgumentTypeException {
+        if (!(parameters[i] instanceof ConstantObjectInspector)) {
+            throw new UDFArgumentTypeException(i, "The hash option must be a constant.");
+        }
+        Object value = ((ConstantObjectInspector) parameters[i]).getWritableConstantValue();
+        String option = value == null ? null : value.toString();
+        if (HASH_STRING.equalsIgnoreCase(option)) {
+            return true;
+        }
+        if (HASH_NATIVE.equalsIgnoreCase(option)) {
+            return false;
+        }
+        throw new UDFArgumentTypeException(i, String.format(Locale.ENGLISH, "The hash option must be '%s' or '%s'.", HASH_NATIVE, HASH_STRING));
+    }
+
+    static HashStrategy getHashStrategy(ObjectInspector[] parameters, int i) throws UDFArgumentTypeException {
+        if (!(parameters[i] instanceof ConstantObjectInspector)) {
+            throw new UDFArgumentTypeException(i, "The hash function must be a constant.");
+        }
+        Object value = ((ConstantObjectInspector) parameters[i]).getWritableConstantValue();
+        for (HashStrategy hash : HashStrategy.values()) {
+            if (value != null && hash.name().equalsIgnoreCase(value.toString())) {
+                return hash;
+            }
+        }
+        throw new UDFArgumentTypeException(i, "The hash function must be 'murmur2_64', 'xxhash_64' or 'murmur3_128'.");
+    }
+
     public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters) throws SemanticException {
-        if (parameters.length != 1){
-            throw new UDFArgumentTypeException(0, "Specify exactly one argument.");
+        if (parameters.length < 1 || parameters.length > 5){
+            throw new UDFArgumentTypeException(0, "Specify one argument, optionally followed by the precisions p and sp, the hash option and the hash function.");
         }
 
-        // Check if the only input is of string (Primitive type in Java)
+        // The hash option and the hash function are strings
+        for (int i = 3; i < parameters.length; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE
+                    || ((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.STRING) {
+                throw new UDFArgumentTypeException(i, i == 3 ? "The hash option must be a string." : "The hash function must be a string.");
+            }
+        }
+
+        // The precisions are of integer type
+        for (int i = 1; i < parameters.length && i < 3; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i, "Only integer type precision is accepted.");
+            }
+            switch (((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    break;
+                default:
+                    throw new UDFArgumentTypeException(i, "Only integer type precision is accepted.");
+            }
+        }
+
+        // Check if the input is of a primitive type
         if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
-            throw new UDFArgumentTypeException(0, "Only string type argument is accepted.");
+            throw new UDFArgumentTypeException(0, "Only string, integer, decimal or binary type argument is accepted.");
         }
 
         // Check again with casting.
         switch (((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory()) {
             case STRING:
+            case VARCHAR:
+            case CHAR:
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case DECIMAL:
+            case BINARY:
                 break;
             default:
-                throw new UDFArgumentTypeException(0, "Only string type argument is accepted.");
+                throw new UDFArgumentTypeException(0, "Only string, integer, decimal or binary type argument is accepted.");
         }
 
         // Everything is OK now.
+        return newEvaluator();
+    }
+
+    /// Subclasses choose the output representation by returning another evaluator (see HyperLogLogSynopsisBinary).
+    protected GenericUDAFEvaluator newEvaluator() {
         return new HyperLogLogSynopsisEvaluator();
     }
 
@@ -63,11 +238,26 @@ public class HyperLogLogSynopsis extends AbstractGenericUDAFResolver {
     public static class HyperLogLogSynopsisEvaluator extends GenericUDAFEvaluator {
         /// These share function iterate()
         // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
-        private PrimitiveObjectInspector inputOI;   // this should be string
+        private PrimitiveObjectInspector inputOI;   // string, varchar, char, integer, decimal or binary
+        private transient StringObjectInspector stringOI;   // the same, when the Text bytes can be hashed in place
+        private transient boolean hashAsString;     // the 4th argument: hash the values as their text
+        private HashStrategy hash = DEFAULT_HASH;   // the 5th argument
 
         /// These share function merge()
-        // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (list of bytes)
+        // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (list of bytes or binary)
         private transient ListObjectInspector loi;  // this should be array of bytes
+        private transient BinaryObjectInspector boi; // or binary, when the partial results are BINARY
+
+        /// When true, partial and final results are one BINARY value instead of array<tinyint>.
+        /// Must be decided by the class itself: Hive re-creates evaluators on the tasks with the no-arg constructor.
+        protected boolean binaryOutput = false;
+        private transient BytesWritable binaryResult;   // reused for every terminatePartial() of this evaluator
+
+        /// The precisions are only known in PARTIAL1 and COMPLETE (the constant arguments).
+        /// In PARTIAL2 and FINAL, the buffer takes them from the first synopsis it merges.
+        private int p = DEFAULT_P;
+        private int sp = DEFAULT_SP;
+        private boolean precisionKnown = false;
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
@@ -79,54 +269,149 @@ public class HyperLogLogSynopsis extends AbstractGenericUDAFResolver {
             if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
                 /// These share iterate()
                 inputOI = (PrimitiveObjectInspector) parameters[0];
-            } else {
+                stringOI = (inputOI instanceof StringObjectInspector) ? (StringObjectInspector) inputOI : null;
+                if (parameters.length > 1)
+                    p = getConstantInt(parameters, 1);
+                if (parameters.length > 2)
+                    sp = getConstantInt(parameters, 2);
+                hashAsString = parameters.length > 3 && getHashAsString(parameters, 3);
+                if (parameters.length > 4)
+                    hash = getHashStrategy(parameters, 4);
+                precisionKnown = true;
+            } else if (parameters[0] instanceof BinaryObjectInspector) {
                 /// These share merge()
+                boi = (BinaryObjectInspector) parameters[0];
+            } else {
                 loi = (ListObjectInspector) parameters[0];
             }
 
             /// OUTPUT!!!
             // initialize output object inspectors
+            if (binaryOutput) {
+                binaryResult = new BytesWritable();
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
+
             return ObjectInspectorFactory.getStandardListObjectInspector(
                     PrimitiveObjectInspectorFactory.writableByteObjectInspector);
         }
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-            HyperLogLogBuffer hllbuff = (HyperLogLogBuffer)agg;
+            return serialize((HyperLogLogBuffer)agg, PARTIAL_CODEC, false);
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            /// The final result or the intermediate result are the same (the array of bytes representing the HyperLogLog instance),
+            /// only compressed differently. Both are read back by the same code (SketchCodec.decode).
+            return serialize((HyperLogLogBuffer)agg, FINAL_CODEC, FINAL_CACHED_ESTIMATE);
+        }
 
-            ArrayList<ByteWritable> result = new ArrayList<ByteWritable>();
+        private Object serialize(HyperLogLogBuffer hllbuff, SketchCodec codec, boolean cachedEstimate) throws HiveException {
 
-            /// Maybe not too optimized because converting from array of bytes to List of ByteWritable???
+            /// Nothing was merged (PARTIAL2 or FINAL): return an empty synopsis of the default precision.
+            if (hllbuff.hllp == null)
+                hllbuff.hllp = newHyperLogLogPlus(new HyperLogLogPlus(p, sp));
+            hllbuff.hllp.setCachedEstimate(cachedEstimate);
+
+            byte[] arrBytes = null;
             try{
                 //byte[] arrBytes = testSerialize.toByteArray(hllbuff.hllp);
-                byte[] arrBytes = testSerialize.toByteArray2(hllbuff.hllp, true);
-                for(int i = 0; i < arrBytes.length; i++){
-                    result.add(new ByteWritable(arrBytes[i]));
-                }
+                arrBytes = testSerialize.toByteArray2(hllbuff.hllp, codec);
             }
             catch (Exception ex){
                 // There shouldn't be any errors of any kind here; thus, stop the task!
                 throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
             }
 
-            return result;
-        }
+            if (binaryOutput) {
+                binaryResult.set(arrBytes, 0, arrBytes.length);
+                return binaryResult;
+            }
 
-        @Override
-        public Object terminate(AggregationBuffer agg) throws HiveException {
-            /// The final result or the intermediate result are the same (the array of bytes representing the HyperLogLog instance)
-            return terminatePartial(agg);
+            /// Maybe not too optimized because converting from array of bytes to List of ByteWritable???
+            ArrayList<ByteWritable> result = new ArrayList<ByteWritable>(arrBytes.length);
+            for(int i = 0; i < arrBytes.length; i++){
+                result.add(new ByteWritable(arrBytes[i]));
+            }
+
+            return result;
         }
 
         @Override
         public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
             HyperLogLogBuffer hllBuff = (HyperLogLogBuffer)agg;
 
-            String cookie = PrimitiveObjectInspectorUtils.getString(parameters[0], inputOI);
+            Object value = parameters[0];
+            if (value == null)
+                return;
+
+            switch (inputOI.getPrimitiveCategory()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    long number = PrimitiveObjectInspectorUtils.getLong(value, inputOI);
+                    hllBuff.hllp.offerHashed(hashAsString ? hash.hash(Long.toString(number)) : hash.hashLong(number));
+                    return;
+                case DECIMAL:
+                    HiveDecimal decimal = ((HiveDecimalObjectInspector) inputOI).getPrimitiveJavaObject(value);
+                    if (decimal == null)
+                        return;
+                    if (hashAsString) {
+                        hllBuff.hllp.offerHashed(hash.hash(decimal.toString()));
+                    } else {
+                        /// HiveDecimal is normalized (no trailing zeros): the unscaled value and the scale identify it.
+                        byte[] unscaled = decimal.unscaledValue().toByteArray();
+                        hllBuff.hllp.offerHashed(hash.hash(unscaled, 0, unscaled.length, hash.defaultSeed() + decimal.scale()));
+                    }
+                    return;
+                case BINARY:
+                    /// The bytes themselves (also what a string made of them hashes to, when they are UTF-8)
+                    BytesWritable bw = ((BinaryObjectInspector) inputOI).getPrimitiveWritableObject(value);
+                    if (bw != null)
+                        offerBytes(hllBuff.hllp, hash, bw.getBytes(), bw.getLength());
+                    return;
+                case VARCHAR:
+                    HiveVarcharWritable varchar = ((HiveVarcharObjectInspector) inputOI).getPrimitiveWritableObject(value);
+                    if (varchar != null)
+                        offerText(hllBuff.hllp, hash, varchar.getTextValue());
+                    return;
+                case CHAR:
+                    /// Without the padding, like CAST(... AS STRING)
+                    HiveCharWritable chars = ((HiveCharObjectInspector) inputOI).getPrimitiveWritableObject(value);
+                    if (chars != null)
+                        offerText(hllBuff.hllp, hash, chars.getStrippedValue());
+                    return;
+                default:
+                    if (stringOI != null) {
+                        /// Hash the UTF-8 bytes of the Text where they are: no String, no byte[] for each row.
+                        offerText(hllBuff.hllp, hash, stringOI.getPrimitiveWritableObject(value));
+                        return;
+                    }
+                    break;
+            }
+
+            String cookie = PrimitiveObjectInspectorUtils.getString(value, inputOI);
+
+            /// Digest the new data! This is the iterate() function. The UTF-8 bytes, like the Text values above.
+            if (cookie != null && cookie.length() > 0 && !cookie.equals("-")) {
+                byte[] bytes = cookie.getBytes(StandardCharsets.UTF_8);
+                hllBuff.hllp.offerHashed(hash.hash(bytes, 0, bytes.length));
+            }
+        }
+
+        /// Hashes the UTF-8 bytes of the Text (Text is always UTF-8), skipping the empty and "-" strings.
+        private static void offerText(HyperLogLogPlus hllp, HashStrategy hash, Text text) {
+            if (text != null)
+                offerBytes(hllp, hash, text.getBytes(), text.getLength());
+        }
 
-            /// Digest the new data! This is the iterate() function.
-            if (cookie != null && cookie.length() > 0 && !cookie.equals("-"))
-                hllBuff.hllp.offer(cookie);
+        /// Hashes bytes[0, length), skipping the empty value and "-", like the strings.
+        private static void offerBytes(HyperLogLogPlus hllp, HashStrategy hash, byte[] bytes, int length) {
+            if (length > 0 && !(length == 1 && bytes[0] == '-'))
+                hllp.offerHashed(hash.hash(bytes, 0, length));
         }
 
         @Override
@@ -134,6 +419,31 @@ public class HyperLogLogSynopsis extends AbstractGenericUDAFResolver {
             if (partial == null)
                 return;
 
+            HyperLogLogBuffer hllBuff = (HyperLogLogBuffer)agg;
+            try{
+                /// Fold the serialized registers of another HyperLogLog instance straight into ours.
+                /// The first synopsis merged into an empty buffer gives the precisions.
+                if (boi != null) {
+                    BytesWritable bw = boi.getPrimitiveWritableObject(partial);
+                    if (hllBuff.hllp == null)
+                        hllBuff.hllp = newHyperLogLogPlus(testSerialize.fromByteArray2(bw.getBytes(), 0, bw.getLength(), true, hllBuff.takeSpare()));
+                    else
+                        testSerialize.mergeByteArray2(hllBuff.hllp, bw.getBytes(), 0, bw.getLength(), true);
+                } else {
+                    byte[] partialHllArr = toByteArray(partial);
+                    if (hllBuff.hllp == null)
+                        hllBuff.hllp = newHyperLogLogPlus(testSerialize.fromByteArray2(partialHllArr, 0, partialHllArr.length, true, hllBuff.takeSpare()));
+                    else
+                        testSerialize.mergeByteArray2(hllBuff.hllp, partialHllArr, 0, partialHllArr.length, true);
+                }
+            }
+            catch (Exception ex){
+                throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
+            }
+        }
+
+        /// Copy an array<tinyint> partial result into a plain byte array.
+        private byte[] toByteArray(Object partial) {
             ArrayList<ByteWritable> partialHllData = (ArrayList<ByteWritable>)loi.getList(partial);
             ByteObjectInspector objIns = (ByteObjectInspector)loi.getListElementObjectInspector();
 
@@ -150,24 +460,7 @@ public class HyperLogLogSynopsis extends AbstractGenericUDAFResolver {
                 /// Probably above is the best we can do (https://stackoverflow.com/questions/21106146/read-values-wrapped-in-hadoop-arraywritable)
             }
 
-            HyperLogLogPlus partialHll = null;
-
-            try{
-                //partialHll = testSerialize.fromByteArray(partialHllArr);
-                partialHll = testSerialize.fromByteArray2(partialHllArr, true);
-            }
-            catch(Exception ex){
-                throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
-            }
-
-            HyperLogLogBuffer hllBuff = (HyperLogLogBuffer)agg;
-            try{
-                /// Digest the bitfields from another HyperLogLog instance.
-                hllBuff.hllp.addAll(partialHll);
-            }
-            catch (Exception ex){
-                throw new HiveException(String.format(Locale.ENGLISH, "MyError: %s", ex.toString()));
-            }
+            return partialHllArr;
         }
 
         ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -181,13 +474,52 @@ public class HyperLogLogSynopsis extends AbstractGenericUDAFResolver {
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
             HyperLogLogBuffer result = (HyperLogLogBuffer)agg;
-            result.hllp = new HyperLogLogPlus(16);  // Use HLL 16 bits! Hardcoded!!!
+            if (precisionKnown) {
+                /// Same precisions and hash for every group: empty the synopsis of the previous group in place.
+                if (result.hllp != null) {
+                    result.hllp.clear();
+                    return;
+                }
+                result.hllp = newHyperLogLogPlus(new HyperLogLogPlus(p, sp));
+                result.hllp.setBytePerRegister(BYTE_PER_REGISTER);
+                result.hllp.setHash(hash);
+            } else {
+                /// The next group takes its precisions from its first synopsis: keep this one aside for it.
+                result.recycle();
+            }
+        }
+
+        private static HyperLogLogPlus newHyperLogLogPlus(HyperLogLogPlus hllp) {
+            hllp.setSparseSizeRatio(SPARSE_SIZE_RATIO);
+            hllp.setCompressedSparseSet(COMPRESSED_SPARSE_SET);
+            return hllp;
         }
 
         // Aggregation buffer definition and manipulation methods
         @AggregationType(estimable = true)
         static class HyperLogLogBuffer extends AbstractAggregationBuffer {
-            HyperLogLogPlus hllp;   // the HyperLogLog object
+            HyperLogLogPlus hllp;   // the HyperLogLog object (null until the first merge when the precisions are not known)
+            HyperLogLogPlus spare;  // the synopsis of a previous group, reused by the first merge when it is of the same kind
+
+            void recycle() {
+                if (hllp != null)
+                    spare = hllp;
+                hllp = null;
+            }
+
+            HyperLogLogPlus takeSpare() {
+                HyperLogLogPlus result = spare;
+                spare = null;
+                return result;
+            }
+
+            /// What the map-side hash aggregation counts for this group: a sparse synopsis takes a few hundred bytes,
+            /// a normal one the whole register array.
+            @Override
+            public int estimate() {
+                return JavaDataModel.get().object() + 2 * JavaDataModel.get().ref()
+                        + (hllp == null ? 0 : hllp.memorySize()) + (spare == null ? 0 : spare.memorySize());
+            }
         };
     }
 }
@@ -0,0 +1,35 @@
+package com.mycompany;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+
+/* HOW TO USE IN HIVE: Same as HyperLogLogSynopsis, but the synopsis is stored as BINARY instead of array<tinyint>.
+
+add jar hdfs://[some address where Hive can find...]/HyperLogLogSynopsis.jar;
+
+create temporary function HyperLogLogSynopsisBinary as 'com.mycompany.HyperLogLogSynopsisBinary';
+
+-- hllSynopsis.hll is of BINARY type here.
+INSERT OVERWRITE TABLE hllSynopsis
+SELECT t.dt, HyperLogLogSynopsisBinary(t.ip)
+FROM myiptable t
+WHERE  t.dt IN ('20141201', '20141202', '20141203', '20141204',
+                     '20141205', '20141206', '20141207')
+GROUP  BY t.dt
+ORDER  BY t.dt ASC
+*/
+
+public class HyperLogLogSynopsisBinary extends HyperLogLogSynopsis {
+
+    @Override
+    protected GenericUDAFEvaluator newEvaluator() {
+        return new HyperLogLogSynopsisBinaryEvaluator();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// The whole sketch travels as one BytesWritable (partial and final results), not one ByteWritable per byte.
+    public static class HyperLogLogSynopsisBinaryEvaluator extends HyperLogLogSynopsisEvaluator {
+        public HyperLogLogSynopsisBinaryEvaluator() {
+            binaryOutput = true;
+        }
+    }
+}